@@ -0,0 +1,49 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Room.broadcastToRoom fan-out to in-memory members
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int members;
+
+    private Room room;
+    private ClientHandler sender;
+
+    @Setup
+    public void setup() {
+        Server server = new Server();
+        room = new Room("bench", members);
+        for (int i = 0; i < members; i++) {
+            ClientHandler client = InMemoryConnection.connect(server, "user" + i);
+            room.addClient(client);
+            if (i == 0) {
+                sender = client;
+            }
+        }
+    }
+
+    @Benchmark
+    public void broadcast() {
+        room.broadcastToRoom("user0: hello everyone, how is it going?", sender);
+    }
+}
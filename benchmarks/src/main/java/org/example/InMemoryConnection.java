@@ -0,0 +1,70 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Connection without a socket: counts what would have been written and drops it.
+// Lives in org.example so benchmarks can use the package-private ClientHandler constructor.
+public class InMemoryConnection implements Connection {
+    private static final AtomicInteger nextPort = new AtomicInteger(10000);
+
+    private final int port = nextPort.getAndIncrement();
+    private long framesWritten;
+    private long bytesWritten;
+    private boolean open = true;
+    private boolean binary = false;
+
+    @Override
+    public void sendFrame(ByteBuffer frame) {
+        framesWritten++;
+        bytesWritten += frame.remaining();
+    }
+
+    // Counts the frame in the connection's format, encoded once as for a real socket
+    @Override
+    public void sendShared(SharedFrame frame) {
+        sendFrame(binary ? frame.binary() : frame.text());
+    }
+
+    @Override
+    public void startBinary(ByteBuffer reply) {
+        sendFrame(reply);
+        binary = true;
+    }
+
+    @Override
+    public int getRemotePort() {
+        return port;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return "in-memory";
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    public long getFramesWritten() {
+        return framesWritten;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    // A logged-in client on an in-memory connection
+    static ClientHandler connect(Server server, String username) {
+        ClientHandler handler = new ClientHandler(new InMemoryConnection(), server);
+        handler.onConnected();
+        handler.onBytes(ByteBuffer.wrap((username + "\n").getBytes()));
+        return handler;
+    }
+}
@@ -0,0 +1,217 @@
+package org.example;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Headless load test: N simulated users on top of Client's receive loop.
+//
+//   java -cp benchmarks/target/benchmarks.jar org.example.LoadGenerator \
+//        --embedded --users 500 --login-rate 200 --rate 2000 --duration 30
+//
+// Every measured message carries "lg:<System.nanoTime()>" and the receiving user
+// records the delivery latency, so sender and receivers must share a JVM (they do).
+// --embedded starts a Server in this JVM on localhost, so no network is needed.
+public class LoadGenerator {
+    private static final String MARKER = "lg:";
+    private static final String[] EMOJIS = {":rocket:", ":smile:", ":heart:", ":thumbsup:", ":fire:"};
+
+    private final String host;
+    private final int port;
+    private final List<String> rooms;
+    // Plain sockets, or TLS ones from one shared SSLContext, so reconnects resume the session
+    private final SocketFactory sockets;
+    private final Histogram latency = new ConcurrentHistogram(TimeUnit.SECONDS.toNanos(60), 3);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final List<SimulatedUser> users = new ArrayList<>();
+
+    LoadGenerator(String host, int port, List<String> rooms, SocketFactory sockets) {
+        this.host = host;
+        this.port = port;
+        this.rooms = rooms;
+        this.sockets = sockets;
+    }
+
+    // One connected user; receives on a virtual thread through Client.startReceiver
+    private final class SimulatedUser {
+        final String name;
+        final Socket socket;
+        final PrintWriter writer;
+
+        SimulatedUser(String name, String room) throws IOException {
+            this.name = name;
+            this.socket = sockets.createSocket(host, port);
+            this.writer = new PrintWriter(socket.getOutputStream(), true);
+            Client.startReceiver(socket, Thread.ofVirtual(), this::onLine);
+            writer.println(name);
+            writer.println("/join " + room);
+        }
+
+        void onLine(String line) {
+            if (line.equals("PING")) {
+                writer.println("PONG");  // heartbeat, not a delivery
+                return;
+            }
+            // Our own echoes ("[You]: ...", "[PM to x]: ...") are not deliveries
+            if (line.startsWith("[You") || line.startsWith("[PM to") || line.startsWith("[FILE sent")) {
+                return;
+            }
+            int at = line.indexOf(MARKER);
+            if (at < 0) {
+                return;
+            }
+            long sentAt = 0;
+            for (int i = at + MARKER.length(); i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                sentAt = sentAt * 10 + (c - '0');
+            }
+            latency.recordValue(Math.max(0, System.nanoTime() - sentAt));
+            received.increment();
+        }
+
+        void send(String line) {
+            writer.println(line);
+            sent.increment();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // shutting down anyway
+            }
+        }
+    }
+
+    void connectUsers(int count, int loginsPerSecond) throws IOException, InterruptedException {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, loginsPerSecond);
+        long next = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            users.add(new SimulatedUser("load" + i, rooms.get(i % rooms.size())));
+            next += intervalNanos;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            }
+        }
+    }
+
+    // Mix is in percent: text, emoji, pm; the rest is file announcements
+    void drive(int messagesPerSecond, int durationSeconds, int textPct, int emojiPct, int pmPct) throws InterruptedException {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, messagesPerSecond);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long next = System.nanoTime();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        while (System.nanoTime() < end) {
+            SimulatedUser from = users.get(random.nextInt(users.size()));
+            int pick = random.nextInt(100);
+            long now = System.nanoTime();
+            if (pick < textPct) {
+                from.send("hello from " + from.name + " " + MARKER + now);
+            } else if (pick < textPct + emojiPct) {
+                from.send(EMOJIS[random.nextInt(EMOJIS.length)]);  // no room for a timestamp, counted as sent only
+            } else if (pick < textPct + emojiPct + pmPct) {
+                SimulatedUser to = users.get(random.nextInt(users.size()));
+                from.send("/pm " + to.name + " psst " + MARKER + now);
+            } else {
+                from.send(MARKER + now + ".pdf");
+            }
+
+            next += intervalNanos;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            }
+        }
+    }
+
+    void report(int durationSeconds) {
+        System.out.println();
+        System.out.println("=== LOAD TEST RESULT ===");
+        System.out.println("Users:      " + users.size());
+        System.out.printf("Sent:       %d (%.0f msg/s)%n", sent.sum(), sent.sum() / (double) durationSeconds);
+        System.out.printf("Delivered:  %d (%.0f msg/s)%n", received.sum(), received.sum() / (double) durationSeconds);
+        System.out.printf("p50:  %8.1f us%n", latency.getValueAtPercentile(50) / 1000.0);
+        System.out.printf("p99:  %8.1f us%n", latency.getValueAtPercentile(99) / 1000.0);
+        System.out.printf("p999: %8.1f us%n", latency.getValueAtPercentile(99.9) / 1000.0);
+        System.out.printf("max:  %8.1f us%n", latency.getMaxValue() / 1000.0);
+        System.out.println();
+        System.out.println("Latency distribution (microseconds):");
+        latency.outputPercentileDistribution(System.out, 1000.0);
+    }
+
+    void closeAll() {
+        for (SimulatedUser user : users) {
+            user.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = Server.option(args, "--host", "localhost");
+        int port = Integer.parseInt(Server.option(args, "--port", "5001"));
+        int userCount = Integer.parseInt(Server.option(args, "--users", "100"));
+        int loginRate = Integer.parseInt(Server.option(args, "--login-rate", "100"));
+        int rate = Integer.parseInt(Server.option(args, "--rate", "1000"));
+        int duration = Integer.parseInt(Server.option(args, "--duration", "10"));
+        int warmup = Integer.parseInt(Server.option(args, "--warmup", "2"));
+        int textPct = Integer.parseInt(Server.option(args, "--text", "70"));
+        int emojiPct = Integer.parseInt(Server.option(args, "--emoji", "10"));
+        int pmPct = Integer.parseInt(Server.option(args, "--pm", "15"));
+        List<String> rooms = List.of(Server.option(args, "--rooms", "Lobby,testRoom1,testRoom2,testRoom3,testRoom4").split(","));
+
+        if (Server.hasFlag(args, "--embedded")) {
+            // Room capacity must fit everyone, otherwise /join fails and only PMs get through
+            String capacity = String.valueOf(userCount);
+            String mode = Server.option(args, "--mode", "--virtual");
+            // --keystore FILE: the embedded server runs with --tls FILE
+            String keystore = Server.option(args, "--keystore", null);
+            String[] serverArgs = keystore != null
+                    ? new String[]{"--port", String.valueOf(port), "--room-capacity", capacity, mode, "--tls", keystore}
+                    : new String[]{"--port", String.valueOf(port), "--room-capacity", capacity, mode};
+            Thread serverThread = new Thread(() -> Server.main(serverArgs), "embedded-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            Thread.sleep(500);
+        }
+
+        // --tls [--truststore FILE]: connect over TLS, e.g. to measure handshake cost at --login-rate
+        SocketFactory sockets = SocketFactory.getDefault();
+        if (Server.hasFlag(args, "--tls")) {
+            String truststore = Server.option(args, "--truststore", null);
+            sockets = Tls.clientContext(truststore != null ? Path.of(truststore) : null).getSocketFactory();
+        }
+
+        LoadGenerator generator = new LoadGenerator(host, port, rooms, sockets);
+        generator.connectUsers(userCount, loginRate);
+        System.out.println("Connected " + userCount + " users");
+
+        if (warmup > 0) {
+            generator.drive(rate, warmup, textPct, emojiPct, pmPct);
+            Thread.sleep(200);
+            generator.latency.reset();
+            generator.sent.reset();
+            generator.received.reset();
+        }
+
+        generator.drive(rate, duration, textPct, emojiPct, pmPct);
+        Thread.sleep(500);  // let in-flight deliveries arrive
+        generator.report(duration);
+        generator.closeAll();
+        System.exit(0);
+    }
+}
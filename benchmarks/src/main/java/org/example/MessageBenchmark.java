@@ -0,0 +1,85 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// Message parse/serialize. Run with "-prof gc" and compare gc.alloc.rate.norm
+// to see the bytes allocated per message.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageBenchmark {
+    private final MessageFactory factory = new MessageFactory();
+    private String rawText;
+    private String rawLegacyTimestamp;
+    private Message parsed;
+    private ByteBuffer binaryFrames;
+    private FrameDecoder binaryDecoder;
+
+    @Setup
+    public void setup() {
+        rawText = "Client-5001|1760000000000|TEXT|hello everyone, how is it going?";
+        rawLegacyTimestamp = "Client-5001|2025-10-17 12:00:00|TEXT|hello everyone, how is it going?";
+        parsed = factory.parseMessage(rawText);
+
+        ByteBuffer frame = BinaryCodec.encode(MessageType.TEXT, 5001, 1760000000000L, "hello everyone, how is it going?");
+        binaryFrames = ByteBuffer.allocate(frame.remaining());
+        binaryFrames.put(frame).flip();
+        binaryDecoder = new FrameDecoder(line -> { }, message -> { });
+        binaryDecoder.switchToBinary();
+    }
+
+    @Benchmark
+    public Message parseText() {
+        return factory.parseMessage(rawText);
+    }
+
+    @Benchmark
+    public Message parseLegacyTimestamp() {
+        return factory.parseMessage(rawLegacyTimestamp);
+    }
+
+    @Benchmark
+    public void parseAndReadFields(Blackhole bh) {
+        Message message = factory.parseMessage(rawText);
+        bh.consume(message.getMessageType());
+        bh.consume(message.getPayload());
+        bh.consume(message.getTimestampMillis());
+    }
+
+    @Benchmark
+    public String toProtocolString() {
+        return parsed.toProtocolString();
+    }
+
+    @Benchmark
+    public Message createTextMessage() {
+        return factory.createTextMessage("Client-5001", "hello everyone, how is it going?");
+    }
+
+    @Benchmark
+    public void decodeBinaryFrame() {
+        binaryFrames.rewind();
+        binaryDecoder.decode(binaryFrames);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBinaryFrame() {
+        return BinaryCodec.encode(MessageType.TEXT, 5001, 1760000000000L, "hello everyone, how is it going?");
+    }
+}
@@ -0,0 +1,47 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// ClientHandler input dispatch: framing + processInput for each kind of line
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Dchat.rate.enabled=false")  // one client flat out would just measure the limiter
+@State(Scope.Thread)
+public class ProcessInputBenchmark {
+
+    @Param({"hello there", ":fire:", "report.pdf", "/who", "/pm bob hi bob", "Client-1|1760000000000|TEXT|hello"})
+    public String line;
+
+    private ClientHandler sender;
+    private ByteBuffer input;
+
+    @Setup
+    public void setup() {
+        Server server = new Server();
+        sender = InMemoryConnection.connect(server, "alice");
+        InMemoryConnection.connect(server, "bob");
+        input = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public void dispatch() {
+        input.rewind();
+        sender.onBytes(input);
+    }
+}
@@ -0,0 +1,61 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// RoomManager.joinRoom / leaveAllRooms under contention: every thread moves its
+// own client back and forth between two rooms
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RoomChurnBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        Server server;
+        RoomManager roomManager;
+
+        @Setup
+        public void setup() {
+            server = new Server();
+            roomManager = server.getRoomManager();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PerThread {
+        ClientHandler client;
+        boolean flip;
+
+        @Setup
+        public void setup(Shared shared) {
+            client = InMemoryConnection.connect(shared.server, "churn-" + Thread.currentThread().threadId());
+        }
+    }
+
+    @Benchmark
+    public boolean joinAlternating(Shared shared, PerThread thread) {
+        thread.flip = !thread.flip;
+        return shared.roomManager.joinRoom(thread.client, thread.flip ? "testRoom1" : "testRoom2");
+    }
+
+    @Benchmark
+    public void joinThenLeaveAll(Shared shared, PerThread thread) {
+        shared.roomManager.joinRoom(thread.client, "testRoom3");
+        shared.roomManager.leaveAllRooms(thread.client);
+    }
+}
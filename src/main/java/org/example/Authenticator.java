@@ -0,0 +1,111 @@
+package org.example;
+
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Password checks and session tokens for Server --credentials FILE.
+//
+// PBKDF2 takes a good part of a CPU core for 100+ ms, so it never runs on a connection
+// thread or an event loop: checks go to a fixed pool with a bounded queue, and when that
+// is full the login is refused ("server busy") instead of piling up.
+//
+// A successful login hands out a random token. Logging in with the token skips the hash,
+// so a reconnect storm costs map lookups instead of a PBKDF2 per client. Tokens are kept
+// in an LRU map of bounded size and expire after a while.
+//
+//   -Dchat.auth.threads=N                 verification threads (default: cores / 2)
+//   -Dchat.auth.queue=256                 checks waiting for a thread before logins are refused
+//   -Dchat.auth.tokens=100000             tokens remembered
+//   -Dchat.auth.tokenTtlSeconds=86400     how long a token stays valid
+public class Authenticator {
+    static final int THREADS = Integer.getInteger("chat.auth.threads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    static final int QUEUE = Integer.getInteger("chat.auth.queue", 256);
+    static final int MAX_TOKENS = Integer.getInteger("chat.auth.tokens", 100_000);
+    static final long TOKEN_TTL_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("chat.auth.tokenTtlSeconds", 86400));
+
+    private record Token(String username, long expires) {
+    }
+
+    private final CredentialStore store;
+    private final ThreadPoolExecutor pool;
+    private final SecureRandom random = new SecureRandom();
+    private final ReentrantLock tokenLock = new ReentrantLock();
+    // Access order, so the least recently used token goes first when the map is full
+    private final LinkedHashMap<String, Token> tokens = new LinkedHashMap<>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Token> eldest) {
+            return size() > MAX_TOKENS;
+        }
+    };
+
+    public Authenticator(CredentialStore store) {
+        this.store = store;
+        this.pool = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE), runnable -> {
+                    Thread thread = new Thread(runnable, "auth");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    // Check the password on the pool; `done` runs there with the result. Returns false,
+    // without calling `done`, if the pool is saturated.
+    public boolean verify(String username, String password, Consumer<Boolean> done) {
+        try {
+            pool.execute(() -> {
+                long start = System.nanoTime();
+                boolean ok = store.verify(username, password);
+                Metrics.authVerified(ok, System.nanoTime() - start);
+                done.accept(ok);
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            Metrics.authBusy();
+            return false;
+        }
+    }
+
+    public String issueToken(String username) {
+        byte[] bytes = new byte[24];
+        random.nextBytes(bytes);
+        String token = HexFormat.of().formatHex(bytes);
+        tokenLock.lock();
+        try {
+            tokens.put(token, new Token(username, System.nanoTime() + TOKEN_TTL_NANOS));
+        } finally {
+            tokenLock.unlock();
+        }
+        return token;
+    }
+
+    // The user a token was issued to, or null if it is unknown or expired
+    public String resolveToken(String token) {
+        tokenLock.lock();
+        try {
+            Token entry = tokens.get(token);
+            if (entry == null) {
+                return null;
+            }
+            if (System.nanoTime() - entry.expires() > 0) {
+                tokens.remove(token);
+                return null;
+            }
+            return entry.username();
+        } finally {
+            tokenLock.unlock();
+        }
+    }
+
+    public int getQueuedChecks() {
+        return pool.getQueue().size();
+    }
+}
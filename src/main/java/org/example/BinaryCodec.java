@@ -0,0 +1,62 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Binary framing, negotiated per connection with the "/binary" command:
+//
+//   int  length     bytes that follow this field
+//   byte type       MessageType.tag()
+//   long clientId   numeric client id (0 = server)
+//   long timestamp  epoch millis
+//   ...  payload    UTF-8, may contain '|' and newlines
+//
+// All integers are big-endian (ByteBuffer default).
+public final class BinaryCodec {
+    public static final String NEGOTIATE_COMMAND = "/binary";
+    public static final int HEADER_LENGTH = 1 + 8 + 8;
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+    public static final long SERVER_CLIENT_ID = 0;
+
+    private BinaryCodec() {
+    }
+
+    public static ByteBuffer encode(MessageType type, long clientId, long timestamp, String payload) {
+        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(4 + HEADER_LENGTH + payloadBytes.length);
+        frame.putInt(HEADER_LENGTH + payloadBytes.length)
+                .put(type.tag())
+                .putLong(clientId)
+                .putLong(timestamp)
+                .put(payloadBytes)
+                .flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    // Check the value of a length prefix before trusting it
+    static int checkLength(int length) {
+        if (length < HEADER_LENGTH || length > MAX_FRAME_LENGTH) {
+            throw new IllegalStateException("Invalid binary frame length: " + length);
+        }
+        return length;
+    }
+
+    // Decode one frame body (after the length prefix, limit at the end of the frame).
+    // The payload String is the only allocation; scratch is used when the buffer is direct.
+    static Message decode(ByteBuffer frame, byte[] scratch) {
+        MessageType type = MessageType.fromTag(frame.get());
+        long clientId = frame.getLong();
+        long timestamp = frame.getLong();
+        int payloadLength = frame.remaining();
+
+        String payload;
+        if (frame.hasArray()) {
+            payload = new String(frame.array(), frame.arrayOffset() + frame.position(), payloadLength, StandardCharsets.UTF_8);
+            frame.position(frame.limit());
+        } else {
+            frame.get(scratch, 0, payloadLength);
+            payload = new String(scratch, 0, payloadLength, StandardCharsets.UTF_8);
+        }
+        return new Message(clientId, type, timestamp, payload);
+    }
+}
@@ -0,0 +1,146 @@
+package org.example;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous server log. Producers put the line in a fixed-size ring buffer and return;
+// one background thread writes batches to stdout/stderr. When the ring is full the line is
+// dropped and counted, so a logging thread never waits on console I/O or a console lock.
+//
+//   -Dchat.log.level=DEBUG|INFO|WARN|ERROR   minimum level (default INFO)
+//   -Dchat.log.sample=N                      log 1 in N per-message events (default 0 = off)
+public final class ChatLog {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int CAPACITY = 8192;  // power of two
+    private static final int MASK = CAPACITY - 1;
+
+    private static final Level MIN_LEVEL = Level.valueOf(System.getProperty("chat.log.level", "INFO"));
+    private static final int SAMPLE = Integer.getInteger("chat.log.sample", 0);
+
+    private static final AtomicReferenceArray<String> lines = new AtomicReferenceArray<>(CAPACITY);
+    private static final boolean[] errorStream = new boolean[CAPACITY];
+    private static final AtomicLong tail = new AtomicLong();  // next slot to claim (producers)
+    private static volatile long head = 0;                    // next slot to write (writer thread)
+    private static final LongAdder dropped = new LongAdder();
+
+    static {
+        Thread writer = new Thread(ChatLog::writeLoop, "chat-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(ChatLog::drainOnExit, "chat-log-flush"));
+    }
+
+    private ChatLog() {
+    }
+
+    // Should this per-message event be logged? Check before building the log string.
+    public static boolean sampled() {
+        return SAMPLE > 0 && (SAMPLE == 1 || ThreadLocalRandom.current().nextInt(SAMPLE) == 0);
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= MIN_LEVEL.ordinal();
+    }
+
+    public static void debug(String line) {
+        log(Level.DEBUG, line);
+    }
+
+    public static void info(String line) {
+        log(Level.INFO, line);
+    }
+
+    public static void warn(String line) {
+        log(Level.WARN, line);
+    }
+
+    public static void error(String line) {
+        log(Level.ERROR, line);
+    }
+
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    public static void log(Level level, String line) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        long slot;
+        do {
+            slot = tail.get();
+            if (slot - head >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(slot, slot + 1));
+
+        int index = (int) (slot & MASK);
+        errorStream[index] = level.ordinal() >= Level.WARN.ordinal();
+        lines.set(index, line);  // publishes errorStream[index] as well
+    }
+
+    private static void writeLoop() {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 1 << 16);
+        Writer err = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.err), StandardCharsets.UTF_8), 1 << 14);
+        while (true) {
+            if (!writeBatch(out, err)) {
+                LockSupport.parkNanos(1_000_000);
+            }
+        }
+    }
+
+    // Write everything published so far; false if there was nothing to write
+    private static synchronized boolean writeBatch(Writer out, Writer err) {
+        boolean wroteAny = false;
+        boolean wroteErr = false;
+        try {
+            while (true) {
+                int index = (int) (head & MASK);
+                String line = lines.get(index);
+                if (line == null) {
+                    break;  // not claimed yet, or claimed but not yet published
+                }
+                boolean toErr = errorStream[index];
+                lines.set(index, null);
+                head = head + 1;
+
+                (toErr ? err : out).write(line);
+                (toErr ? err : out).write('\n');
+                wroteAny = true;
+                wroteErr |= toErr;
+            }
+            if (wroteAny) {
+                out.flush();
+                if (wroteErr) {
+                    err.flush();
+                }
+            }
+        } catch (IOException e) {
+            // Nowhere left to report it
+        }
+        return wroteAny;
+    }
+
+    // Write out everything logged so far on the calling thread, e.g. from another shutdown hook
+    public static void flush() {
+        drainOnExit();
+    }
+
+    private static void drainOnExit() {
+        writeBatch(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8),
+                new OutputStreamWriter(new FileOutputStream(FileDescriptor.err), StandardCharsets.UTF_8));
+    }
+}
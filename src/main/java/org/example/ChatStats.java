@@ -0,0 +1,37 @@
+package org.example;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+public class ChatStats implements ChatStatsMBean {
+    private final Server server;
+
+    public ChatStats(Server server) {
+        this.server = server;
+    }
+
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("org.example:type=ChatStats"));
+        } catch (JMException e) {
+            ChatLog.error("Could not register JMX stats: " + e.getMessage());
+        }
+    }
+
+    @Override public int getClientsConnected() { return server.getClientCount(); }
+    @Override public long getConnectionsOpened() { return Metrics.getConnectionsOpened(); }
+    @Override public long getConnectionsClosed() { return Metrics.getConnectionsClosed(); }
+    @Override public long getLogins() { return Metrics.getLogins(); }
+    @Override public long getMessagesIn() { return Metrics.getMessagesInTotal(); }
+    @Override public long getMessagesOut() { return Metrics.getMessagesOutTotal(); }
+    @Override public long getBytesWritten() { return Metrics.getBytesWritten(); }
+    @Override public long getParseFailures() { return Metrics.getParseFailures(); }
+    @Override public long getDroppedFrames() { return Metrics.getDroppedFrames(); }
+    @Override public long getSlowConsumerDisconnects() { return Metrics.getSlowConsumerDisconnects(); }
+    @Override public long getOutboundQueueDepthMax() { return server.getOutboundQueueDepth(true); }
+    @Override public long getRoomRecentBytes() { return server.getRoomManager().getRecentBytes(); }
+    @Override public double getMeanFanOut() { return Metrics.getFanOut().getMean(); }
+    @Override public long getBroadcastNanosP99() { return Metrics.getBroadcastNanos().getPercentile(99); }
+    @Override public String getReport() { return Metrics.render(server); }
+}
@@ -0,0 +1,20 @@
+package org.example;
+
+// JMX view of Metrics, registered as org.example:type=ChatStats
+public interface ChatStatsMBean {
+    int getClientsConnected();
+    long getConnectionsOpened();
+    long getConnectionsClosed();
+    long getLogins();
+    long getMessagesIn();
+    long getMessagesOut();
+    long getBytesWritten();
+    long getParseFailures();
+    long getDroppedFrames();
+    long getSlowConsumerDisconnects();
+    long getOutboundQueueDepthMax();
+    long getRoomRecentBytes();
+    double getMeanFanOut();
+    long getBroadcastNanosP99();
+    String getReport();
+}
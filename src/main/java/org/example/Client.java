@@ -1,41 +1,64 @@
 package org.example;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 public class Client {
+    // Files named in /upload, waiting for the server's ticket
+    private static final Map<String, Path> pendingUploads = new ConcurrentHashMap<>();
+
     public static void main(String[] args) {
         String hostname = "localhost";
         int port = 5001;
 
         try {
-            Socket socket = new Socket(hostname, port);
+            // --tls [--truststore FILE]: the server runs with --tls; a self-signed server
+            // certificate needs its truststore (see Tls)
+            Socket socket;
+            if (Server.hasFlag(args, "--tls")) {
+                String truststore = Server.option(args, "--truststore", null);
+                SSLSocket ssl = (SSLSocket) Tls.clientContext(truststore != null ? Path.of(truststore) : null)
+                        .getSocketFactory().createSocket(hostname, port);
+                SSLParameters parameters = ssl.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");  // check the certificate's host name
+                ssl.setSSLParameters(parameters);
+                socket = ssl;
+            } else {
+                socket = new Socket(hostname, port);
+            }
             Scanner scanner = new Scanner(System.in);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
 
             System.out.println("Connected to " + hostname + ":" + port);
 
-            Thread recieveThread = new Thread(() -> {
-                try {
-                    String message;
-                    while ((message = reader.readLine()) != null) {
-                        System.out.println(message);
-                    }
-                } catch (SocketException e) {
-                    System.err.println("Connection lost");
-                } catch (SocketTimeoutException e) {
-                    System.err.println("Connection timeout");
-                }
-                catch (IOException e) {
-                System.err.println("I/O error");
-                }
+            // --compress: ask for a Deflate-compressed stream from the server
+            InputStream fromServer = socket.getInputStream();
+            if (Server.hasFlag(args, "--compress")) {
+                writer.println(StreamCompressor.NEGOTIATE_COMMAND);
+                fromServer = awaitCompression(fromServer);
+            }
 
-            });
-            recieveThread.start();
+            Thread recieveThread = startReceiver(fromServer, Thread.ofPlatform(), line -> onServerLine(hostname, writer, line));
 
             String input;
             while ((input = scanner.nextLine()) != null) {
+                    // /upload <local path>: the server only needs the name and size
+                    if (input.startsWith("/upload ")) {
+                        Path file = Path.of(input.substring(8).trim());
+                        if (Files.isRegularFile(file)) {
+                            pendingUploads.put(file.getFileName().toString(), file);
+                            input = "/upload " + file.getFileName() + " " + Files.size(file);
+                        }
+                    }
                     writer.println(input);
                     System.err.println("I/O error");
             }
@@ -56,4 +79,99 @@ public class Client {
 
     }
 
+    // Print the plain lines in front of the server's answer; after "OK DEFLATE" the rest of the
+    // stream is raw Deflate. Byte by byte, so nothing compressed is read as text.
+    private static InputStream awaitCompression(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != -1) {
+            if (b != '\n') {
+                line.write(b);
+                continue;
+            }
+            String text = line.toString("UTF-8").trim();
+            line.reset();
+            if (text.equals("OK DEFLATE")) {
+                return new InflaterInputStream(input, new Inflater(true)) {
+                    // The default answers 1 until the end of the stream, so InputStreamReader
+                    // would wait for more input instead of handing over the lines it has
+                    @Override
+                    public int available() {
+                        return 0;
+                    }
+                };
+            }
+            System.out.println(text);
+            if (text.startsWith("ERR")) {
+                return input;
+            }
+        }
+        return input;
+    }
+
+    // File tickets start a transfer on the server's file port; everything else is printed
+    private static void onServerLine(String hostname, PrintWriter writer, String line) {
+        // Server heartbeat: answer quietly, or an idle session gets reaped
+        if (line.equals("PING")) {
+            writer.println("PONG");
+            return;
+        }
+        // FILE_UPLOAD <ticket> <port> <name>  /  FILE_DOWNLOAD <ticket> <port> <name> <size>
+        String[] parts = line.split(" ", 4);
+        if (parts[0].equals("FILE_UPLOAD") && parts.length == 4) {
+            Path file = pendingUploads.remove(parts[3]);
+            if (file != null) {
+                Thread.ofVirtual().start(() -> transfer("Uploaded " + file, () ->
+                        FileTransferClient.upload(hostname, Integer.parseInt(parts[2]), parts[1], file)));
+                return;
+            }
+        } else if (parts[0].equals("FILE_DOWNLOAD") && parts.length == 4 && parts[3].contains(" ")) {
+            int space = parts[3].lastIndexOf(' ');
+            String name = parts[3].substring(0, space);
+            long size = Long.parseLong(parts[3].substring(space + 1));
+            Path target = Path.of(Path.of(name).getFileName().toString());
+            Thread.ofVirtual().start(() -> transfer("Downloaded " + target.toAbsolutePath(), () ->
+                    FileTransferClient.download(hostname, Integer.parseInt(parts[2]), parts[1], target, size)));
+            return;
+        }
+        System.out.println(line);
+    }
+
+    private interface Transfer {
+        void run() throws IOException;
+    }
+
+    private static void transfer(String done, Transfer transfer) {
+        try {
+            transfer.run();
+            System.out.println(done);
+        } catch (IOException e) {
+            System.err.println("File transfer failed: " + e.getMessage());
+        }
+    }
+
+    // Read lines from the server until the connection ends, handing each one to onLine.
+    // Shared with the load generator, which runs thousands of these on virtual threads.
+    static Thread startReceiver(Socket socket, Thread.Builder threadBuilder, Consumer<String> onLine) throws IOException {
+        return startReceiver(socket.getInputStream(), threadBuilder, onLine);
+    }
+
+    static Thread startReceiver(InputStream input, Thread.Builder threadBuilder, Consumer<String> onLine) {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+        return threadBuilder.start(() -> {
+            try {
+                String message;
+                while ((message = reader.readLine()) != null) {
+                    onLine.accept(message);
+                }
+            } catch (SocketException e) {
+                System.err.println("Connection lost");
+            } catch (SocketTimeoutException e) {
+                System.err.println("Connection timeout");
+            }
+            catch (IOException e) {
+            System.err.println("I/O error");
+            }
+        });
+    }
 }
@@ -1,27 +1,63 @@
 package org.example;
-import java.io.BufferedReader;
+import javax.net.ssl.SSLException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 public class ClientHandler implements Runnable {
+    // Small on purpose: with virtual threads an idle client should cost kilobytes, not a full stack
+    private static final int READ_BUFFER_SIZE = 1024;
+    private static final int HISTORY_DEFAULT = 20;
+    private static final int HISTORY_MAX = 500;
+    private static final int ROOMS_LISTED = 100;
+    // PING after this long without input, reap after IDLE_TIMEOUT without input (0 = never):
+    // -Dchat.heartbeat.seconds=30, -Dchat.idle.timeoutSeconds=90
+    static final long PING_INTERVAL = TimeUnit.SECONDS.toNanos(Long.getLong("chat.heartbeat.seconds", 30));
+    static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(Long.getLong("chat.idle.timeoutSeconds", 90));
+    // Wrong passwords before the connection is closed (only with --credentials)
+    static final int MAX_LOGIN_ATTEMPTS = 5;
+
     private Socket socket;
-    private String clientId;
-    private BufferedReader reader;
-    private PrintWriter writer;
+    private volatile String clientId;
+    private InputStream input;
+    private Connection connection;
     private Server server;
     private String username;
     private Map<String, Runnable> commandMap;  // HashMap mapping
     private Map<MessageType, Runnable> protocolMap;  // HashMap for protocol messages
     private RoomManager roomManager;
     private Room currentRoom;
-    private boolean isLoggedIn = false;
+    // Rooms this client is in, kept by Room itself, so leaving never scans all rooms
+    private final Set<Room> rooms = ConcurrentHashMap.newKeySet();
+    private volatile boolean isLoggedIn = false;
+    // A password check is running on the Authenticator pool; cleared last, after login()
+    private volatile boolean authPending = false;
+    private int failedLogins = 0;  // only touched by the pool callback, one at a time
     private MessageFactory messageFactory;  // MessageFactory
     private Message currentMessage;  // Current message being processed
 
+    private final AtomicBoolean disconnected = new AtomicBoolean(false);
+    // Resumable output after login (SessionManager); null before login or with sessions off
+    private volatile Session session;
+    private volatile boolean quitting = false;  // /quit ends the session, a dropped socket does not
+    // Flood protection, see RateLimits; only touched by the thread reading this client
+    private final TokenBucket lineLimit = RateLimits.newClientBucket();
+    private final TokenBucket[] typeLimits = RateLimits.newTypeBuckets();
+    private long lastRateNotice = System.nanoTime() - 2_000_000_000L;
+    private boolean rateLimitClosed = false;
+    // Any input counts as a sign of life; read by the heartbeat on the timer thread
+    private volatile long lastActivity = System.nanoTime();
+    private final FrameDecoder decoder = new FrameDecoder(this::handleLine, this::handleBinaryMessage);
+
     public ClientHandler(Socket socket, Server server) {
         this.socket = socket;
         this.server = server;
@@ -31,14 +67,29 @@ public class ClientHandler implements Runnable {
 
         initializeCommandMap();  // Initialize HashMap
         try {
-            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.writer = new PrintWriter(socket.getOutputStream(), true);
+            // Backstop for the heartbeat: a read that sees nothing for this long times out
+            if (IDLE_TIMEOUT > 0) {
+                socket.setSoTimeout((int) TimeUnit.NANOSECONDS.toMillis(IDLE_TIMEOUT + PING_INTERVAL));
+            }
+            this.input = socket.getInputStream();
+            this.connection = new SocketConnection(socket);
         } catch (IOException e) {
-            System.err.println("Failed to get streams for " + clientId + ": " + e.getMessage());
+            ChatLog.error("Failed to get streams for " + clientId + ": " + e.getMessage());
             sendMessage("Failed trying to establish connection, try again");
         }
     }
 
+    // Used by the NIO event loop: input arrives through handleLine instead of run()
+    ClientHandler(Connection connection, Server server) {
+        this.connection = connection;
+        this.server = server;
+        this.clientId = "Client-" + connection.getRemotePort();
+        this.roomManager = server.getRoomManager();
+        this.messageFactory = new MessageFactory();
+
+        initializeCommandMap();
+    }
+
     // HashMap mapping initialization
     private void initializeCommandMap() {
         // Commands mapping
@@ -49,6 +100,7 @@ public class ClientHandler implements Runnable {
         commandMap.put("/who", this::showWhoInRoom);
         commandMap.put("/quit", this::quitClient);
         commandMap.put("/exit", this::quitClient);
+        commandMap.put("/stats", this::showStats);
 
         // Protocol messages mapping
         protocolMap = new HashMap<>();
@@ -61,16 +113,40 @@ public class ClientHandler implements Runnable {
     }
 
     public void sendMessage(String message) {
-        if (writer != null) {
-            writer.println(message);
+        if (connection == null) {
+            return;
         }
+        output().sendShared(new SharedFrame(message, 1));
+    }
+
+    // After login everything goes through the Session, which numbers it for replay
+    private Connection output() {
+        Session current = session;
+        return current != null ? current : connection;
+    }
+
+    // Send a broadcast frame that was encoded once for many recipients
+    public void sendFrame(SharedFrame frame) {
+        if (connection != null) {
+            output().sendShared(frame);
+        }
+    }
+
+    // Queue several shared frames as one batch
+    private void sendFrames(List<SharedFrame> frames) {
+        if (connection == null) {
+            return;
+        }
+        output().sendAllShared(frames);
     }
 
     // Send protocol message til klient
     public void sendProtocolMessage(Message message) {
-        if (writer != null) {
-            writer.println(message.toProtocolString());
+        if (connection == null) {
+            return;
         }
+        output().sendShared(new SharedFrame(message.toProtocolString(), message.getMessageType(),
+                Math.max(message.getClientNumber(), 0), message.getTimestampMillis(), message.getPayload()));
     }
 
     public String getUsername() {
@@ -81,6 +157,15 @@ public class ClientHandler implements Runnable {
         return clientId;
     }
 
+    // ClientRegistry, when another connected client already has this id
+    void setClientId(String clientId) {
+        this.clientId = clientId;
+    }
+
+    public int getQueuedFrames() {
+        return connection != null ? connection.getQueuedFrames() : 0;
+    }
+
     public Room getCurrentRoom() {
         return currentRoom;
     }
@@ -89,56 +174,398 @@ public class ClientHandler implements Runnable {
         this.currentRoom = room;
     }
 
+    public boolean isLoggedIn() {
+        return isLoggedIn;
+    }
+
+    public Set<Room> getRooms() {
+        return rooms;
+    }
+
+    // Called by Room under its membership lock
+    void addRoom(Room room) {
+        rooms.add(room);
+    }
+
+    void removeRoom(Room room) {
+        rooms.remove(room);
+    }
+
     @Override
     public void run() {
         try {
-            server.addClient(this);
+            onConnected();
 
-            sendMessage("Welcome! Please enter your username: ");
-            String inputUsername = reader.readLine();
+            // Raw bytes through the FrameDecoder instead of a BufferedReader: no 8K char buffer
+            // per client and no monitor held while the (virtual) thread is parked in read()
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                wrapped.clear().limit(read);
+                onBytes(wrapped);
+            }
 
-            if (inputUsername == null || inputUsername.trim().isEmpty()) {
-                username = clientId;
-            } else {
-                username = inputUsername.trim();
+        } catch (IllegalStateException e) {
+            Metrics.parseFailure();
+            ChatLog.error("Protocol error from client " + clientId + ": " + e.getMessage());
+            sendMessage("Protocol error, you will be disconnected");
+        } catch (SSLException e) {
+            Metrics.tlsFailure();
+            ChatLog.warn("TLS error with client " + clientId + ": " + e.getMessage());
+        } catch (SocketException e){
+            ChatLog.error("socket error for client: "+clientId + e.getMessage());
+            sendMessage("Network connection error happened. You will be disconnected");
+        } catch (SocketTimeoutException e){
+            ChatLog.error("socket timeout for client: "+clientId + e.getMessage());
+            sendMessage("Connection timed out. You will be disconnected");
+        } catch (IOException e) {
+            ChatLog.error("Error with client " + clientId + ": " + e.getMessage());
+            sendMessage("A communication error occured, shutting down connection");
+        } finally {
+            cleanup();
+        }
+    }
+
+    void onConnected() {
+        Metrics.connectionOpened();
+        server.addClient(this);
+        sendMessage(server.getAuthenticator() != null
+                ? "Welcome! Please log in with: <username> <password>"
+                : "Welcome! Please enter your username: ");
+        if (PING_INTERVAL > 0) {
+            server.getTimer().schedule(this::heartbeat, PING_INTERVAL, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Entry point for raw input, whichever transport delivered it
+    void onBytes(ByteBuffer buffer) {
+        lastActivity = System.nanoTime();
+        decoder.decode(buffer);
+    }
+
+    // Runs on the shared timer thread: only enqueues or closes, never blocks.
+    // One pending timeout per client, re-armed from lastActivity, so input costs no timer work.
+    private void heartbeat() {
+        if (disconnected.get()) {
+            return;
+        }
+        long idle = System.nanoTime() - lastActivity;
+        if (IDLE_TIMEOUT > 0 && idle >= IDLE_TIMEOUT) {
+            Metrics.idleReaped();
+            ChatLog.info(getUsername() + " (" + clientId + ") timed out after "
+                    + TimeUnit.NANOSECONDS.toSeconds(idle) + "s without input");
+            // The reader notices the closed socket and runs cleanup, which frees the room slot
+            connection.abort();
+            return;
+        }
+        long next = PING_INTERVAL - idle;
+        if (idle >= PING_INTERVAL) {
+            sendPing();
+            next = PING_INTERVAL;
+        }
+        if (IDLE_TIMEOUT > 0) {
+            next = Math.min(next, IDLE_TIMEOUT - idle);
+        }
+        server.getTimer().schedule(this::heartbeat, next, TimeUnit.NANOSECONDS);
+    }
+
+    private void sendPing() {
+        Metrics.pingSent();
+        output().sendShared(new SharedFrame("PING", MessageType.PING, BinaryCodec.SERVER_CLIENT_ID,
+                System.currentTimeMillis(), ""));
+    }
+
+    private void handleLine(String rawInput) {
+        if (rawInput.equals(BinaryCodec.NEGOTIATE_COMMAND)) {
+            // Answer in text, everything after this line is binary in both directions. The
+            // output switches in the queue step that queues the reply, so a broadcast from
+            // another thread is either text before it or binary after it.
+            // Not a counted session frame: a resumed connection gets its format from attach.
+            output().startBinary(Frames.encodeLine("OK BINARY"));
+            decoder.switchToBinary();
+            return;
+        }
+        if (rawInput.equals(StreamCompressor.NEGOTIATE_COMMAND)) {
+            if (!StreamCompressor.ENABLED) {
+                sendMessage("ERR compression disabled");
+            } else if (!output().startCompression(Frames.encodeLine("OK DEFLATE"))) {
+                sendMessage("ERR compression not supported");
             }
+            return;
+        }
+        // The answer to our heartbeat: the activity is already recorded, and it does not count
+        // against rate limits. A PING from the client costs a reply, so it is charged like any line.
+        if (rawInput.equals("PONG")) {
+            return;
+        }
+        if (!admitInput()) {
+            return;
+        }
+        if (rawInput.equals("PING")) {
+            sendMessage("PONG");
+            return;
+        }
+        if (isLoggedIn) {
+            processInput(rawInput);
+        } else {
+            authenticate(rawInput);
+        }
+    }
 
-            // Send LOGIN besked using MessageFactory
-            Message loginMessage = messageFactory.createLoginMessage(clientId, username);
-            System.out.println("Login: " + loginMessage.toProtocolString());
-            isLoggedIn = true;
+    // Every line or frame counts against the client's own limit, commands included
+    private boolean admitInput() {
+        return !rateLimitClosed && admit(lineLimit, RateLimits.Scope.CLIENT);
+    }
 
-            sendMessage("Hello " + username + "! You are now connected to the chat server.");
+    // Count an incoming message and check it against its type's limit and its room's limit
+    private boolean acceptMessage(MessageType type) {
+        Metrics.messageIn(type);
+        if (!admit(typeLimits[type.ordinal()], RateLimits.Scope.TYPE)) {
+            return false;
+        }
+        boolean toRoom = type == MessageType.TEXT || type == MessageType.EMOJI || type == MessageType.FILE_TRANSFER;
+        return !toRoom || currentRoom == null || admit(currentRoom.getRateLimit(), RateLimits.Scope.ROOM);
+    }
 
-            // Automatisk join Lobby using MessageFactory
-            if (roomManager.joinRoom(this, "Lobby")) {
-                this.currentRoom = roomManager.findRoomByName("Lobby");
+    private boolean admit(TokenBucket limit, RateLimits.Scope scope) {
+        if (limit == null) {
+            return true;
+        }
+        if (RateLimits.POLICY == RateLimits.Policy.DELAY && connection.canBlock()) {
+            long wait = limit.tryReserve(1, RateLimits.MAX_DELAY_NANOS);
+            if (wait >= 0) {
+                if (wait > 0) {
+                    Metrics.rateDelayed();
+                    LockSupport.parkNanos(wait);
+                }
+                return true;
+            }
+        } else if (limit.tryAcquire(1)) {
+            return true;
+        }
 
-                // Send JOIN_ROOM besked using MessageFactory
-                Message joinMessage = messageFactory.createJoinRoomMessage(clientId, "Lobby");
-                System.out.println("Join room: " + joinMessage.toProtocolString());
+        Metrics.rateLimited(scope);
+        if (RateLimits.POLICY == RateLimits.Policy.DISCONNECT) {
+            rateLimitClosed = true;
+            Metrics.rateLimitDisconnect();
+            ChatLog.warn(getUsername() + " (" + clientId + ") disconnected for flooding (" + scope + " limit)");
+            sendMessage("Rate limit exceeded, you will be disconnected");
+            connection.close();
+            return false;
+        }
+        // At most one notice a second, or the notices would be a flood of their own
+        long now = System.nanoTime();
+        if (now - lastRateNotice > 1_000_000_000L) {
+            lastRateNotice = now;
+            sendMessage("You are sending too fast, message dropped (" + scope.name().toLowerCase() + " limit)");
+        }
+        return false;
+    }
 
-                sendMessage("You automatically joined the Lobby room!");
+    // Server shutdown: the notice goes out behind whatever is already queued, then the
+    // connection closes itself once it has written everything
+    void disconnectForShutdown(String notice) {
+        if (disconnected.get()) {
+            // Socket already gone, kept only for its session: nothing to drain
+            // (detach again to get a generation that expires right away)
+            Session detached = session;
+            if (detached != null && detached.expireIfDetached(detached.detach(this)) == this) {
+                leaveForGood(detached);
             }
+            return;
+        }
+        sendMessage(notice);
+        connection.close();
+    }
 
-            sendHelpMessage();
+    // Shutdown deadline passed: give up on the rest; returns the frames left undelivered
+    int abortForShutdown() {
+        int undelivered = connection.getQueuedFrames();
+        connection.abort();
+        return undelivered;
+    }
 
-            String rawInput;
-            while ((rawInput = reader.readLine()) != null) {
-                processInput(rawInput);
+    void onDisconnected() {
+        cleanup();
+    }
+
+    // With --credentials the login is "<username> <password>", or "TOKEN <token>" with the
+    // token from an earlier login. The password check runs on the Authenticator pool and
+    // finishes in onVerified; a token is just a lookup. Without --credentials the input is
+    // the username, as before. Either way "RESUME <session> <count>" picks up a dropped
+    // session instead (SessionManager).
+    private void authenticate(String input) {
+        if (input != null && input.startsWith("RESUME ")) {
+            resume(input.substring("RESUME ".length()).trim());
+            return;
+        }
+        Authenticator authenticator = server.getAuthenticator();
+        if (authenticator == null) {
+            login(input);
+            return;
+        }
+        if (authPending) {
+            sendMessage("Still checking your login, please wait");
+            return;
+        }
+        String[] parts = input == null ? new String[0] : input.trim().split("\\s+", 2);
+        if (parts.length == 2 && parts[0].equals("TOKEN")) {
+            String user = authenticator.resolveToken(parts[1]);
+            if (user == null) {
+                sendMessage("Unknown or expired token, please log in with: <username> <password>");
+                return;
             }
+            Metrics.authTokenLogin();
+            login(user);
+            return;
+        }
+        if (parts.length != 2) {
+            sendMessage("Please log in with: <username> <password>");
+            return;
+        }
+        authPending = true;
+        if (!authenticator.verify(parts[0], parts[1], ok -> onVerified(authenticator, parts[0], ok))) {
+            authPending = false;
+            sendMessage("Server busy, please try again in a moment");
+        }
+    }
 
-        } catch (SocketException e){
-            System.err.println("socket error for client: "+clientId + e.getMessage());
-            sendMessage("Network connection error happened. You will be disconnected");
-        } catch (SocketTimeoutException e){
-            System.err.println("socket timeout for client: "+clientId + e.getMessage());
-            sendMessage("Connection timed out. You will be disconnected");
-        } catch (IOException e) {
-            System.err.println("Error with client " + clientId + ": " + e.getMessage());
-            sendMessage("A communication error occured, shutting down connection");
+    // Runs on the Authenticator pool
+    private void onVerified(Authenticator authenticator, String user, boolean ok) {
+        try {
+            if (disconnected.get()) {
+                return;
+            }
+            if (!ok) {
+                ChatLog.warn("Failed login for " + user + " from " + clientId);
+                if (++failedLogins >= MAX_LOGIN_ATTEMPTS) {
+                    sendMessage("Too many failed logins, you will be disconnected");
+                    connection.close();
+                } else {
+                    sendMessage("Invalid username or password, please try again: ");
+                }
+                return;
+            }
+            login(user);
+            if (isLoggedIn) {
+                sendMessage("TOKEN " + authenticator.issueToken(username));
+            }
+            // Gone while we were logging in: cleanup already ran, so undo what login did
+            if (disconnected.get()) {
+                roomManager.leaveAllRooms(this);
+                server.removeClient(this);
+                if (session != null) {
+                    server.getSessions().remove(session);
+                }
+            }
         } finally {
-            cleanup();
+            authPending = false;
+        }
+    }
+
+    private void login(String inputUsername) {
+        String candidate;
+        if (inputUsername == null || inputUsername.trim().isEmpty()) {
+            candidate = clientId;
+        } else {
+            candidate = inputUsername.trim();
+        }
+
+        // Username must be unique, otherwise /pm routing would be ambiguous
+        if (!server.registerUsername(this, candidate)) {
+            sendMessage("Username '" + candidate + "' is already taken, please choose another: ");
+            return;
+        }
+        username = candidate;
+
+        // Send LOGIN besked using MessageFactory
+        Message loginMessage = messageFactory.createLoginMessage(clientId, username);
+        ChatLog.info("Login: " + loginMessage.toProtocolString());
+        isLoggedIn = true;
+        Metrics.login();
+
+        if (SessionManager.ENABLED) {
+            Session created = server.getSessions().create(this, connection);
+            created.open(new SharedFrame("SESSION " + created.getId(), 1), () -> session = created);
+        }
+
+        sendMessage("Hello " + username + "! You are now connected to the chat server.");
+
+        // Automatisk join Lobby using MessageFactory
+        Room lobby = roomManager.join(this, "Lobby");
+        if (lobby != null) {
+            this.currentRoom = lobby;
+
+            // Send JOIN_ROOM besked using MessageFactory
+            Message joinMessage = messageFactory.createJoinRoomMessage(clientId, "Lobby");
+            ChatLog.info("Join room: " + joinMessage.toProtocolString());
+
+            sendMessage("You automatically joined the Lobby room!");
+            sendHistory(currentRoom, RoomManager.HISTORY_REPLAY);
+        }
+
+        sendHelpMessage();
+    }
+
+    // "RESUME <session> <count>": take over a dropped (or half-open) connection's session.
+    // Rooms, username and current room move over to this handler without join or leave
+    // notices, then the Session replays what the client missed.
+    private void resume(String arguments) {
+        String[] parts = arguments.split("\\s+");
+        long lastSeq;
+        try {
+            lastSeq = parts.length == 2 ? Long.parseLong(parts[1]) : -1;
+        } catch (NumberFormatException e) {
+            lastSeq = -1;
+        }
+        if (lastSeq < 0) {
+            sendMessage("Usage: RESUME <session> <messages received>");
+            return;
+        }
+        Session resumed = server.getSessions().find(parts[0]);
+        ClientHandler previous = resumed != null ? resumed.claim(this) : null;
+        if (previous == null) {
+            sendMessage("Unknown or expired session, please log in again");
+            return;
+        }
+        if (!previous.disconnected.get()) {
+            // Half-open old socket: drop it quietly, its cleanup sees it no longer owns the session
+            ChatLog.info(previous.getUsername() + " (" + previous.clientId + ") replaced by resumed " + clientId);
+            previous.connection.abort();
+        }
+        username = previous.username;
+        for (Room room : List.copyOf(previous.getRooms())) {
+            room.replaceClient(previous, this);
+        }
+        currentRoom = previous.currentRoom;
+        server.replaceClient(previous, this);
+        isLoggedIn = true;
+        session = resumed;
+        boolean binary = previous.decoder.isBinary();
+        // Everything after the RESUMED line is binary again, as it was before the drop
+        int replayed = resumed.attach(connection, lastSeq, seq -> Frames.encodeLine("RESUMED " + seq), binary);
+        if (binary) {
+            decoder.switchToBinary();
+        }
+        ChatLog.info("Session resumed: " + username + " (" + clientId + "), " + replayed + " frames replayed");
+    }
+
+    // Grace period over without a RESUME: leave the rooms for real, with the usual notices
+    private void expireSession(Session detached, long generation) {
+        ClientHandler owner = detached.expireIfDetached(generation);
+        if (owner != null) {
+            owner.leaveForGood(detached);
+            Metrics.sessionExpired();
+            ChatLog.info(owner.getUsername() + " (" + owner.clientId + ") session expired");
+        }
+    }
+
+    private void leaveForGood(Session ended) {
+        roomManager.leaveAllRooms(this);
+        server.removeClient(this);
+        if (ended != null) {
+            server.getSessions().remove(ended);
         }
     }
 
@@ -158,51 +585,86 @@ public class ClientHandler implements Runnable {
     private void handleProtocolMessage(String rawMessage) {
         try {
             currentMessage = messageFactory.parseMessage(rawMessage);  // Use MessageFactory
-            System.out.println("Received protocol message: " + currentMessage.toProtocolString());
-
-            // Use HashMap mapping instead of switch case
-            Runnable protocolAction = protocolMap.get(currentMessage.getMessageType());
-            if (protocolAction != null) {
-                protocolAction.run();  // Execute mapped protocol handler
-            } else {
-                sendMessage("Unknown message type: " + currentMessage.getMessageType());
+            if (ChatLog.sampled()) {
+                ChatLog.info("Received protocol message: " + currentMessage.toProtocolString());
             }
+            dispatchProtocolMessage();
         } catch (NumberFormatException e){
-            System.err.println("Timestamp is used wrong");
+            ChatLog.error("Timestamp is used wrong");
             sendMessage("Timestamp is causing error");
         } catch (IllegalArgumentException e) {
-            System.err.println("Wrong use of message.");
+            ChatLog.error("Wrong use of message.");
             sendMessage("Invalid message format. Use: ClientID|timestamp|type|payload");
         }
     }
 
+    // Binary frames are already typed, so they skip parsing and go straight to the protocol map
+    private void handleBinaryMessage(Message message) {
+        if (message.getMessageType() == MessageType.PONG) {
+            return;
+        }
+        if (!admitInput()) {
+            return;
+        }
+        if (message.getMessageType() == MessageType.PING) {
+            output().sendShared(new SharedFrame("PONG", MessageType.PONG, BinaryCodec.SERVER_CLIENT_ID,
+                    System.currentTimeMillis(), message.getPayload()));
+            return;
+        }
+        if (!isLoggedIn) {
+            if (message.isLoginMessage()) {
+                authenticate(message.getPayload());
+            } else {
+                sendMessage("Please log in first with a LOGIN message");
+            }
+            return;
+        }
+        currentMessage = message;
+        dispatchProtocolMessage();
+    }
+
+    private void dispatchProtocolMessage() {
+        if (!acceptMessage(currentMessage.getMessageType())) {
+            return;
+        }
+        // Use HashMap mapping instead of switch case
+        Runnable protocolAction = protocolMap.get(currentMessage.getMessageType());
+        if (protocolAction != null) {
+            protocolAction.run();  // Execute mapped protocol handler
+        } else {
+            sendMessage("Unknown message type: " + currentMessage.getMessageType());
+        }
+    }
+
     private void handlePlainTextMessage(String text) {
         if (currentRoom != null) {
-            // Check if message is a file (ends with common file extensions)
-            if (isFileMessage(text)) {
-                // Treat as file transfer
-                Message fileMessage = messageFactory.createFileTransferMessage(clientId, text);
-                System.out.println("File transfer: " + fileMessage.toProtocolString());
-
-                String formattedMessage = username + " shared file: " + text;
-                currentRoom.broadcastToRoom(formattedMessage, this);
-                sendMessage("[You shared file]: " + text);
-            } else if (text.startsWith(":") && text.endsWith(":")) {
+            // Files are shared with /upload, which sends the bytes; a file name is just text
+            if (text.startsWith(":") && text.endsWith(":")) {
                 // Treat as emoji message
+                if (!acceptMessage(MessageType.EMOJI)) {
+                    return;
+                }
                 Message emojiMessage = messageFactory.createEmojiMessage(clientId, text);
-                System.out.println("Emoji message: " + emojiMessage.toProtocolString());
+                if (ChatLog.sampled()) {
+                    ChatLog.info("Emoji message: " + emojiMessage.toProtocolString());
+                }
 
                 String emoji = convertEmojiCode(text);
                 String formattedMessage = username + ": " + emoji;
-                currentRoom.broadcastToRoom(formattedMessage, this);
+                currentRoom.broadcastToRoom(formattedMessage, this, MessageType.EMOJI);
                 sendMessage("[You]: " + emoji);
             } else {
                 // Treat as normal text
+                if (!acceptMessage(MessageType.TEXT)) {
+                    return;
+                }
                 Message textMessage = messageFactory.createTextMessage(clientId, text);
-                System.out.println("Text message: " + textMessage.toProtocolString());
+                if (ChatLog.sampled()) {
+                    ChatLog.info("Text message: " + textMessage.toProtocolString());
+                }
 
                 String formattedMessage = username + ": " + text;
-                currentRoom.broadcastToRoom(formattedMessage, this);
+                currentRoom.broadcastToRoom(formattedMessage, this, MessageType.TEXT);
                 sendMessage("[You]: " + text);
             }
         } else {
@@ -210,21 +672,10 @@ public class ClientHandler implements Runnable {
             sendMessage("💡 Use /join <roomname> to join a room");
         }
     }
-    private boolean isFileMessage(String text) {
-        String[] fileExtensions = {".pdf", ".jpg", ".png", ".gif", ".txt", ".doc", ".docx", ".zip", ".mp3", ".mp4"};
-        String lowerText = text.toLowerCase();
-        for (String ext : fileExtensions) {
-            if (lowerText.endsWith(ext)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     private void handleTextMessage(Message message) {
         if (currentRoom != null) {
             String formattedMessage = getUsername() + ": " + message.getPayload();
-            currentRoom.broadcastToRoom(formattedMessage, this);
+            currentRoom.broadcastToRoom(formattedMessage, this, MessageType.TEXT);
         }
     }
 
@@ -232,7 +683,7 @@ public class ClientHandler implements Runnable {
         if (currentRoom != null) {
             String emoji = convertEmojiCode(message.getPayload());
             String formattedMessage = getUsername() + ": " + emoji;
-            currentRoom.broadcastToRoom(formattedMessage, this);
+            currentRoom.broadcastToRoom(formattedMessage, this, MessageType.EMOJI);
         }
     }
 
@@ -242,19 +693,20 @@ public class ClientHandler implements Runnable {
             String recipientName = parts[0];
             String privateText = parts[1];
 
+            // Emoji conversion; files go through /upload to a room, not in a PM
+            String processedText = convertEmojiCode(privateText);
+            String delivered = "[PM from " + getUsername() + "]: " + processedText;
+            String echo = "[PM to " + recipientName + "]: " + processedText;
+
             ClientHandler recipient = server.findClientByUsername(recipientName);
             if (recipient != null) {
-                // Check if it's a file being shared
-                if (isFileMessage(privateText)) {
-                    // File transfer via private message
-                    recipient.sendMessage("[FILE from " + getUsername() + "]: " + privateText + " 📁");
-                    sendMessage("[FILE sent to " + recipientName + "]: " + privateText + " 📁");
-                } else {
-                    // Regular private message with emoji conversion
-                    String processedText = convertEmojiCode(privateText);
-                    recipient.sendMessage("[PM from " + getUsername() + "]: " + processedText);
-                    sendMessage("[PM to " + recipientName + "]: " + processedText);
-                }
+                Metrics.messagesOut(MessageType.PRIVATE, 1);
+                recipient.sendMessage(delivered);
+                sendMessage(echo);
+            } else if (server.sendRemotePrivate(recipientName, delivered)) {
+                // Connected to another cluster node
+                Metrics.messagesOut(MessageType.PRIVATE, 1);
+                sendMessage(echo);
             } else {
                 sendMessage("User '" + recipientName + "' not found.");
             }
@@ -269,19 +721,70 @@ public class ClientHandler implements Runnable {
         sendMessage("Login processed for: " + message.getPayload());
     }
 
+    // "<filename> <size>": the same as /upload. The room hears about the file once its bytes
+    // have arrived on the file port, not before.
     private void handleFileTransferMessage(Message message) {
-        String fileInfo = message.getPayload();
+        requestUpload(message.getPayload());
+    }
 
-        if (currentRoom != null) {
-            // Simulate file transfer (in real implementation, this would handle actual file data)
-            String formattedMessage = getUsername() + " shared file: " + fileInfo + " 📁";
-            currentRoom.broadcastToRoom(formattedMessage, this);
-            sendMessage("File shared successfully: " + fileInfo);
-        } else {
+
+    // Hand out an upload ticket; the bytes go over the file port, not this connection
+    private void requestUpload(String arguments) {
+        FileTransferServer files = server.getFileTransfer();
+        if (files == null) {
+            sendMessage("File transfer is not enabled on this server.");
+            return;
+        }
+        int space = arguments.lastIndexOf(' ');
+        if (space <= 0) {
+            sendMessage("Usage: /upload <filename> <size in bytes>");
+            return;
+        }
+        String name = arguments.substring(0, space).trim();
+        long size;
+        try {
+            size = Long.parseLong(arguments.substring(space + 1));
+        } catch (NumberFormatException e) {
+            sendMessage("Usage: /upload <filename> <size in bytes>");
+            return;
+        }
+        if (currentRoom == null) {
             sendMessage("Cannot share file - you are not in any room!");
+            return;
+        }
+        String ticket = files.offerUpload(getUsername(), currentRoom, name, size);
+        if (ticket == null) {
+            if (size <= 0 || size > FileTransferServer.MAX_FILE_BYTES) {
+                sendMessage("File too large, the limit is " + FileTransferServer.MAX_FILE_BYTES + " bytes.");
+            } else if (files.getUploadsInProgress(getUsername()) >= FileTransferServer.MAX_UPLOADS_PER_USER) {
+                sendMessage("You have " + FileTransferServer.MAX_UPLOADS_PER_USER
+                        + " unfinished uploads already; finish one first.");
+            } else {
+                sendMessage("The server's file storage is full, try again later.");
+            }
+            return;
         }
+        sendMessage("FILE_UPLOAD " + ticket + " " + files.getPort() + " " + name);
     }
 
+    private void requestDownload(String fileId) {
+        FileTransferServer files = server.getFileTransfer();
+        if (files == null) {
+            sendMessage("File transfer is not enabled on this server.");
+            return;
+        }
+        FileTransferServer.SpooledFile file = files.find(fileId);
+        if (file == null) {
+            sendMessage("No file with id '" + fileId + "'.");
+            return;
+        }
+        if (file.room == null || !file.room.containsClient(this)) {
+            sendMessage("You can only download files shared in a room you are in.");
+            return;
+        }
+        sendMessage("FILE_DOWNLOAD " + files.offerDownload(file, getUsername()) + " " + files.getPort()
+                + " " + file.name + " " + file.size);
+    }
 
     private String convertEmojiCode(String emojiCode) {
         switch (emojiCode.toLowerCase()) {
@@ -302,20 +805,56 @@ public class ClientHandler implements Runnable {
         // Special handling for commands with parameters
         if (cmd.equals("/join")) {
             if (parts.length > 1) {
-                joinRoom(parts[1]);
+                if (acceptMessage(MessageType.JOIN_ROOM)) {
+                    joinRoom(parts[1]);
+                }
             } else {
                 sendMessage("Usage: /join <roomname>");
             }
             return;
         }
 
+        if (cmd.equals("/create")) {
+            if (parts.length > 1) {
+                createRoom(parts[1]);
+            } else {
+                sendMessage("Usage: /create <room> [capacity]");
+            }
+            return;
+        }
+
+        if (cmd.equals("/upload")) {
+            requestUpload(parts.length > 1 ? parts[1].trim() : "");
+            return;
+        }
+
+        if (cmd.equals("/download")) {
+            requestDownload(parts.length > 1 ? parts[1].trim() : "");
+            return;
+        }
+
+        if (cmd.equals("/search")) {
+            search(parts.length > 1 ? parts[1].trim() : "");
+            return;
+        }
+
+        if (cmd.equals("/history")) {
+            showHistory(parts.length > 1 ? parts[1].trim() : "");
+            return;
+        }
+
         if (cmd.equals("/pm")) {
             if (parts.length > 1) {
                 String[] pmParts = parts[1].split(" ", 2);
                 if (pmParts.length == 2) {
                     // Use MessageFactory for private message
+                    if (!acceptMessage(MessageType.PRIVATE)) {
+                        return;
+                    }
                     Message privateMsg = messageFactory.createPrivateMessage(clientId, parts[1]);
-                    System.out.println("Private message: " + privateMsg.toProtocolString());
+                    if (ChatLog.sampled()) {
+                        ChatLog.info("Private message: " + privateMsg.toProtocolString());
+                    }
                     handlePrivateMessage(privateMsg);
                 } else {
                     sendMessage("Usage: /pm <username> <message>");
@@ -341,8 +880,14 @@ public class ClientHandler implements Runnable {
         sendMessage("/join <room>     - Join a room: testRoom1, testRoom2, testRoom3, testRoom4)");
         sendMessage("/leave           - Leave current room");
         sendMessage("/rooms           - List all rooms");
+        sendMessage("/create <room> [capacity] - Create a new room and join it");
         sendMessage("/who             - Show users in current room");
         sendMessage("/pm <user> <msg> - Send private message");
+        sendMessage("/upload <file>   - Share a file with the room (the client sends name and size)");
+        sendMessage("/download <id>   - Fetch a shared file");
+        sendMessage("/history <n>     - Show the last n messages in current room");
+        sendMessage("/search <room> <words> - Find the latest messages with all the words in a room you are in");
+        sendMessage("/stats           - Show server metrics (admins)");
         sendMessage("/help            - Show this help");
         sendMessage("/quit            - Leave the chat");
         sendMessage("");
@@ -350,17 +895,24 @@ public class ClientHandler implements Runnable {
         sendMessage("ClientID|timestamp|TEXT|your message");
         sendMessage("ClientID|timestamp|EMOJI|:rocket:");
         sendMessage("ClientID|timestamp|PRIVATE|username message");
-        sendMessage("ClientID|timestamp|FILE_TRANSFER|filename.pdf");
+        sendMessage("ClientID|timestamp|FILE_TRANSFER|filename.pdf size - Same as /upload");
+        sendMessage("/binary          - Switch to length-prefixed binary frames");
+        sendMessage("/compress        - Deflate everything the server sends from now on");
+        sendMessage("PONG             - Answer to the server's PING heartbeat");
         sendMessage("");
         sendMessage("=== AUTO-DETECTION ===");
-        sendMessage("document.pdf     - Auto-detected as file transfer");
         sendMessage(":smile:          - Auto-detected as emoji");
         sendMessage("normal text      - Auto-detected as text message");
     }
 
     private void listRooms() {
         sendMessage("=== AVAILABLE ROOMS ===");
+        int listed = 0;
         for (Room room : roomManager.getRooms()) {
+            if (listed++ == ROOMS_LISTED) {
+                sendMessage("... and " + (roomManager.getRoomCount() - ROOMS_LISTED) + " more");
+                break;
+            }
             int occupants = room.howManyInroom();
             int maxCapacity = room.getMaxCapacity();
             String status = room.isRoomFull() ? " (FULL)" : "";
@@ -368,6 +920,36 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    private void createRoom(String arguments) {
+        String[] parts = arguments.trim().split("\\s+");
+        String roomName = parts[0];
+        int capacity = 0;
+        try {
+            if (parts.length > 1) {
+                capacity = Integer.parseInt(parts[1]);
+            }
+        } catch (NumberFormatException e) {
+            capacity = -1;
+        }
+        if (!RoomManager.isValidName(roomName) || capacity < 0 || parts.length > 2) {
+            sendMessage("Usage: /create <room> [capacity]  (letters, digits, - and _, max 32 chars)");
+            return;
+        }
+        if (roomManager.createRoom(getUsername(), roomName, capacity) == null) {
+            if (roomManager.findRoomByName(roomName) != null) {
+                sendMessage("Room '" + roomName + "' already exists.");
+            } else if (roomManager.getRoomsCreatedBy(getUsername()) >= RoomManager.MAX_ROOMS_PER_USER) {
+                sendMessage("You already have " + RoomManager.MAX_ROOMS_PER_USER
+                        + " rooms; unused ones are removed after a while.");
+            } else {
+                sendMessage("The server has too many rooms or is creating them too fast, try again later.");
+            }
+            return;
+        }
+        sendMessage("Room created: " + roomName);
+        joinRoom(roomName);
+    }
+
     private void leaveRoom() {
         if (currentRoom == null) {
             sendMessage("You are not in any room.");
@@ -381,6 +963,120 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    private void showHistory(String count) {
+        if (currentRoom == null) {
+            sendMessage("You are not in any room.");
+            return;
+        }
+        int n;
+        try {
+            n = count.isEmpty() ? HISTORY_DEFAULT : Integer.parseInt(count);
+        } catch (NumberFormatException e) {
+            sendMessage("Usage: /history <n>");
+            return;
+        }
+        Room room = currentRoom;
+        sendHistory(room, Math.max(1, Math.min(n, HISTORY_MAX)),
+                () -> sendMessage("No messages in " + room.getRoomName() + " yet."));
+    }
+
+    private void search(String arguments) {
+        String[] parts = arguments.split("\\s+", 2);
+        if (parts.length < 2) {
+            sendMessage("Usage: /search <room> <words>");
+            return;
+        }
+        Room room = roomManager.findRoomByName(parts[0]);
+        if (room == null) {
+            sendMessage("Room '" + parts[0] + "' does not exist.");
+            return;
+        }
+        if (!room.containsClient(this)) {
+            sendMessage("You can only search rooms you are in.");
+            return;
+        }
+        // The index and the log are read from disk, so not on this thread
+        if (!RoomLog.submit(() -> searchLogged(room, parts[1]))) {
+            sendMessage("Server busy, please try again in a moment");
+        }
+    }
+
+    // Runs on RoomLog's reader pool
+    private void searchLogged(Room room, String words) {
+        if (disconnected.get()) {
+            return;
+        }
+        room.openHistory(false);
+        SearchIndex index = room.getSearch();
+        if (index == null && (!room.keepsHistory() || !SearchIndex.ENABLED)) {
+            sendMessage("Search is not available: the server keeps no history for " + room.getRoomName() + ".");
+            return;
+        }
+        // No index yet: nothing was ever said in the room
+        List<String> lines = index != null ? index.search(words, SearchIndex.RESULTS) : List.of();
+        if (lines.isEmpty()) {
+            sendMessage("No messages in " + room.getRoomName() + " match '" + words + "'.");
+            return;
+        }
+        sendMessage("=== " + lines.size() + " MATCHES FOR '" + words + "' IN " + room.getRoomName().toUpperCase() + " ===");
+        for (String line : lines) {
+            sendMessage(line);
+        }
+    }
+
+    // Replay the room's latest messages, or run `empty` if there is nothing to send.
+    // The in-memory scrollback is used when it holds enough; the disk log only for more, read on
+    // RoomLog's reader pool so a slow disk never stalls this thread. A busy pool gets the scrollback.
+    private void sendHistory(Room room, int count, Runnable empty) {
+        List<SharedFrame> recent = room.getRecent().last(count);
+        if (recent.size() >= count || !room.keepsHistory()
+                || !RoomLog.submit(() -> sendLogged(room, count, recent, empty))) {
+            sendRecent(room, recent, empty);
+        }
+    }
+
+    private void sendHistory(Room room, int count) {
+        sendHistory(room, count, () -> {
+        });
+    }
+
+    // Runs on RoomLog's reader pool
+    private void sendLogged(Room room, int count, List<SharedFrame> recent, Runnable empty) {
+        if (disconnected.get()) {
+            return;
+        }
+        RoomLog history = room.openHistory(false);
+        List<String> lines = history != null ? history.readLast(count) : List.of();
+        if (lines.size() <= recent.size()) {
+            sendRecent(room, recent, empty);
+            return;
+        }
+        sendMessage("=== LAST " + lines.size() + " MESSAGES IN " + room.getRoomName().toUpperCase() + " ===");
+        for (String line : lines) {
+            sendMessage(line);
+        }
+    }
+
+    private void sendRecent(Room room, List<SharedFrame> recent, Runnable empty) {
+        if (recent.isEmpty()) {
+            empty.run();
+            return;
+        }
+        sendMessage("=== LAST " + recent.size() + " MESSAGES IN " + room.getRoomName().toUpperCase() + " ===");
+        sendFrames(recent);
+    }
+
+    private void showStats() {
+        if (!server.isAdmin(getUsername())) {
+            sendMessage("Only server admins can use /stats.");
+            return;
+        }
+        sendMessage("=== SERVER STATS ===");
+        for (String line : Metrics.render(server).split("\n")) {
+            sendMessage(line);
+        }
+    }
+
     private void showWhoInRoom() {
         if (currentRoom != null) {
             sendMessage("=== USERS IN " + currentRoom.getRoomName().toUpperCase() + " ===");
@@ -393,20 +1089,21 @@ public class ClientHandler implements Runnable {
     }
 
     private void joinRoom(String roomName) {
-        if (roomManager.joinRoom(this, roomName)) {
-            Room room = roomManager.findRoomByName(roomName);
+        Room room = roomManager.join(this, roomName);
+        if (room != null) {
             this.currentRoom = room;
 
             // Log JOIN_ROOM protocol message using MessageFactory
             Message joinMessage = messageFactory.createJoinRoomMessage(clientId, roomName);
-            System.out.println("Join room: " + joinMessage.toProtocolString());
+            ChatLog.info("Join room: " + joinMessage.toProtocolString());
 
             sendMessage("You joined room: " + roomName);
+            sendHistory(room, RoomManager.HISTORY_REPLAY);
         } else {
-            Room room = roomManager.findRoomByName(roomName);
+            room = roomManager.findRoomByName(roomName);
             if (room == null) {
                 sendMessage("Room '" + roomName + "' does not exist.");
-                sendMessage("Available rooms: Lobby, Gaming, Study, Random, VIP");
+                sendMessage("Use /rooms to see the rooms, or /create " + roomName + " to make it.");
             } else if (room.isRoomFull()) {
                 sendMessage("Room '" + roomName + "' is full!");
             } else {
@@ -416,37 +1113,40 @@ public class ClientHandler implements Runnable {
     }
 
     private void quitClient() {
+        quitting = true;
         sendMessage("Goodbye!");
-        try {
-            socket.close();
-
-        } catch (SocketException e) {
-            System.err.println("Socket already closed or error while closing.");
-        }
-        catch (IOException e) {
-          System.err.println("I/O error while closing.");
-        }
+        connection.close();
     }
 
+    // No synchronized here: a monitor held across socket close would pin a virtual thread
     private void cleanup() {
+        if (!disconnected.compareAndSet(false, true)) {
+            return;
+        }
         try {
-            if (currentRoom != null) {
-                currentRoom.removeClient(this);
+            // A dropped socket keeps the rooms and the name for a RESUME; /quit does not
+            Session current = session;
+            long generation = current != null && !quitting && !server.isShuttingDown() ? current.detach(this) : -1;
+            if (generation >= 0) {
+                server.getTimer().schedule(() -> expireSession(current, generation),
+                        SessionManager.GRACE_SECONDS, TimeUnit.SECONDS);
+            } else if (current == null || current.getOwner() == this) {
+                leaveForGood(current);
             }
+            // else a resumed connection has taken over the session, rooms and name
+            Metrics.connectionClosed();
 
-            server.removeClient(this);
-
-            if (reader != null) reader.close();
-            if (writer != null) writer.close();
-            if (socket != null) socket.close();
+            if (input != null) input.close();
+            if (connection != null) connection.close();
 
-            System.out.println(username + " (" + clientId + ") disconnected");
+            ChatLog.info(username + " (" + clientId + ") disconnected"
+                    + (generation >= 0 ? ", session kept for " + SessionManager.GRACE_SECONDS + "s" : ""));
 
         } catch (SocketException e) {
-            System.err.println("Socket error during cleanup.");
+            ChatLog.error("Socket error during cleanup.");
 
         } catch (IOException e) {
-            System.err.println("Error during cleanup for " + clientId + ": " + e.getMessage());
+            ChatLog.error("Error during cleanup for " + clientId + ": " + e.getMessage());
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,66 @@
+package org.example;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Thread-safe index of connected clients, by clientId and by logged-in username.
+// Lookups are O(1) and iteration over clients() never throws ConcurrentModificationException.
+public class ClientRegistry {
+    private final ConcurrentHashMap<String, ClientHandler> byClientId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ClientHandler> byUsername = new ConcurrentHashMap<>();
+    private final AtomicLong collisions = new AtomicLong();
+
+    // Usernames are compared case-insensitively, like the old equalsIgnoreCase scan
+    static String normalize(String username) {
+        return username.trim().toLowerCase(Locale.ROOT);
+    }
+
+    // Ids come from the remote port, which two clients can share (different hosts); a later
+    // client gets a numbered id instead of evicting the earlier one's entry
+    public void add(ClientHandler client) {
+        String base = client.getClientId();
+        String id = base;
+        while (byClientId.putIfAbsent(id, client) != null) {
+            id = base + "-" + collisions.incrementAndGet();
+        }
+        if (!id.equals(base)) {
+            client.setClientId(id);
+        }
+    }
+
+    // Atomically claim a username; false if another client already has it
+    public boolean registerUsername(ClientHandler client, String username) {
+        ClientHandler existing = byUsername.putIfAbsent(normalize(username), client);
+        return existing == null || existing == client;
+    }
+
+    public boolean remove(ClientHandler client) {
+        boolean removed = byClientId.remove(client.getClientId(), client);
+        byUsername.remove(normalize(client.getUsername()), client);
+        return removed;
+    }
+
+    // A resumed session: the new handler takes over the old one's username
+    public void replace(ClientHandler previous, ClientHandler client) {
+        byUsername.replace(normalize(client.getUsername()), previous, client);
+        byClientId.remove(previous.getClientId(), previous);
+    }
+
+    public ClientHandler findByUsername(String username) {
+        return byUsername.get(normalize(username));
+    }
+
+    public ClientHandler findByClientId(String clientId) {
+        return byClientId.get(clientId);
+    }
+
+    public Collection<ClientHandler> clients() {
+        return byClientId.values();
+    }
+
+    public int size() {
+        return byClientId.size();
+    }
+}
@@ -0,0 +1,77 @@
+package org.example;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Framing on the links between cluster nodes:
+//
+//   int  length     bytes that follow this field
+//   byte kind       one of the kinds below
+//   byte count      number of fields
+//   ...  fields     each an int byte count followed by UTF-8
+//
+//   HELLO        nodeId, nonce                  connecting node, first frame
+//   HELLO        nodeId, nonce, proof           accepting node's answer
+//   AUTH         proof                          connecting node, before anything else
+//   ROOM         room, MessageType name ("" for notices), line
+//   PRIVATE      username, line
+//   USER_ONLINE  username
+//   USER_OFFLINE username
+//   ROOM_CREATED room, capacity
+//
+// A frame with the wrong number of fields is dropped by the receiver (ClusterNode.handle).
+public final class ClusterCodec {
+    public static final byte HELLO = 1;
+    public static final byte ROOM = 2;
+    public static final byte PRIVATE = 3;
+    public static final byte USER_ONLINE = 4;
+    public static final byte USER_OFFLINE = 5;
+    public static final byte AUTH = 6;
+    public static final byte ROOM_CREATED = 7;
+
+    public static final int MAX_FRAME_LENGTH = 256 * 1024;
+
+    private ClusterCodec() {
+    }
+
+    public record Frame(byte kind, String[] fields) {
+    }
+
+    public static ByteBuffer encode(byte kind, String... fields) {
+        byte[][] encoded = new byte[fields.length][];
+        int length = 2;
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            length += 4 + encoded[i].length;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        frame.putInt(length).put(kind).put((byte) fields.length);
+        for (byte[] field : encoded) {
+            frame.putInt(field.length).put(field);
+        }
+        return frame.flip().asReadOnlyBuffer();
+    }
+
+    public static Frame read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 2 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid cluster frame length: " + length);
+        }
+        byte kind = in.readByte();
+        String[] fields = new String[in.readUnsignedByte()];
+        int remaining = length - 2;
+        for (int i = 0; i < fields.length; i++) {
+            int size = in.readInt();
+            remaining -= 4 + size;
+            if (size < 0 || remaining < 0) {
+                throw new IOException("Invalid cluster field length: " + size);
+            }
+            byte[] bytes = new byte[size];
+            in.readFully(bytes);
+            fields[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return new Frame(kind, fields);
+    }
+}
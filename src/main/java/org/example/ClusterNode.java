@@ -0,0 +1,340 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// This server's place in a cluster of chat servers (full mesh, every node lists the others):
+//
+//   java org.example.Server --port 5001 --cluster-port 7001 --peers localhost:7002 --cluster-secret cluster.key
+//   java org.example.Server --port 5002 --cluster-port 7002 --peers localhost:7001 --cluster-secret cluster.key
+//
+// Membership stays local to each node. Room broadcasts from local users are encoded once
+// and queued to every peer, which delivers them to its own members of that room.
+// Usernames are announced to all peers, so /pm goes straight to the node that has the user.
+// Rooms made with /create are announced too, on creation and on every new link, so users
+// of all nodes can join them. Each node reclaims idle rooms on its own; a message for a
+// room a node no longer has brings it back.
+//
+// The cluster port listens on --cluster-bind (default 127.0.0.1) and both ends of a link
+// prove they know the shared secret (the file --cluster-secret, one line) with an
+// HMAC-SHA256 over fresh nonces from both sides, so it never crosses the wire and a recorded
+// handshake cannot be replayed. The frames after it are neither encrypted nor signed: on a
+// network you do not trust, run the links over a private network or a VPN.
+public class ClusterNode {
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+
+    private final Server server;
+    private final String nodeId;
+    private final InetAddress bindAddress;
+    private final int port;
+    private final SecretKeySpec secret;
+    private final SecureRandom random = new SecureRandom();
+    private final List<PeerLink> peers = new ArrayList<>();
+    // Remote node id by peer, filled in by the handshakes
+    private final ConcurrentHashMap<String, PeerLink> peersByNodeId = new ConcurrentHashMap<>();
+    // Normalized username -> node id, for users connected to other nodes
+    private final ConcurrentHashMap<String, String> directory = new ConcurrentHashMap<>();
+    // Current inbound socket per peer node, so a stale link does not wipe a fresh one's users
+    private final ConcurrentHashMap<String, Socket> inbound = new ConcurrentHashMap<>();
+
+    public ClusterNode(Server server, String nodeId, InetAddress bindAddress, int port, byte[] secret,
+                       List<String> peerAddresses) {
+        if (secret.length == 0) {
+            throw new IllegalArgumentException("Empty cluster secret");
+        }
+        this.server = server;
+        this.nodeId = nodeId;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.secret = new SecretKeySpec(secret, "HmacSHA256");
+        for (String address : peerAddresses) {
+            int colon = address.lastIndexOf(':');
+            peers.add(new PeerLink(this, address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+        }
+    }
+
+    public void start() throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(bindAddress, port));
+        Thread acceptor = new Thread(() -> acceptLoop(serverSocket), "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink peer : peers) {
+            peer.start();
+        }
+        ChatLog.info("Cluster node " + nodeId + " listening on " + bindAddress.getHostAddress() + ":" + port
+                + ", peers: " + peers.size());
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread.ofVirtual().name("cluster-in-" + socket.getPort()).start(() -> readLoop(socket));
+            } catch (IOException e) {
+                ChatLog.error("Cluster accept failed: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        String peerId = null;
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 16 * 1024));
+            peerId = acceptHandshake(socket, input);
+            inbound.put(peerId, socket);
+
+            while (true) {
+                handle(peerId, ClusterCodec.read(input));
+            }
+        } catch (IOException e) {
+            if (peerId != null) {
+                ChatLog.warn("Cluster link from " + peerId + " closed: " + e.getMessage());
+            }
+        } finally {
+            if (peerId != null && inbound.remove(peerId, socket)) {
+                // The node is gone (or restarting): its users are not reachable any more
+                directory.values().removeIf(peerId::equals);
+            }
+        }
+    }
+
+    // HELLO with our nonce and proof, then the peer's AUTH; returns the authenticated node id.
+    // A silent or wrong peer is cut off before it can send anything that is acted on.
+    private String acceptHandshake(Socket socket, DataInputStream input) throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        ClusterCodec.Frame hello = ClusterCodec.read(input);
+        if (hello.kind() != ClusterCodec.HELLO || hello.fields().length != 2) {
+            throw new IOException("Expected HELLO from " + socket.getRemoteSocketAddress());
+        }
+        String peerId = hello.fields()[0];
+        String peerNonce = hello.fields()[1];
+        String nonce = newNonce();
+        OutputStream output = socket.getOutputStream();
+        output.write(toBytes(ClusterCodec.encode(ClusterCodec.HELLO, nodeId, nonce,
+                proof("accept", peerNonce, nonce, nodeId))));
+        output.flush();
+        ClusterCodec.Frame auth = ClusterCodec.read(input);
+        if (auth.kind() != ClusterCodec.AUTH || auth.fields().length != 1
+                || !verify(auth.fields()[0], proof("connect", nonce, peerNonce, peerId))) {
+            Metrics.clusterAuthFailure();
+            ChatLog.warn("Cluster peer " + peerId + " at " + socket.getRemoteSocketAddress() + " failed authentication");
+            throw new IOException("Cluster peer failed authentication");
+        }
+        socket.setSoTimeout(0);
+        return peerId;
+    }
+
+    String newNonce() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    // HMAC over who answers what: the role and the sender's id keep a proof from being
+    // reflected back or reused for another node
+    String proof(String role, String theirNonce, String ourNonce, String senderId) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(secret);
+            String message = role + "|" + theirNonce + "|" + ourNonce + "|" + senderId;
+            return HexFormat.of().formatHex(mac.doFinal(message.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+
+    static boolean verify(String received, String expected) {
+        return MessageDigest.isEqual(received.getBytes(StandardCharsets.UTF_8),
+                expected.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] toBytes(ByteBuffer frame) {
+        ByteBuffer view = frame.duplicate();
+        byte[] bytes = new byte[view.remaining()];
+        view.get(bytes);
+        return bytes;
+    }
+
+    private void handle(String peerId, ClusterCodec.Frame frame) {
+        Metrics.clusterFrameIn();
+        String[] fields = frame.fields();
+        int expected = switch (frame.kind()) {
+            case ClusterCodec.ROOM -> 3;
+            case ClusterCodec.PRIVATE, ClusterCodec.ROOM_CREATED -> 2;
+            case ClusterCodec.USER_ONLINE, ClusterCodec.USER_OFFLINE -> 1;
+            default -> -1;
+        };
+        if (fields.length != expected) {
+            drop(peerId, frame, "expected " + expected + " fields, got " + fields.length);
+            return;
+        }
+        switch (frame.kind()) {
+            case ClusterCodec.ROOM -> {
+                MessageType type = null;
+                if (!fields[1].isEmpty()) {
+                    type = typeNamed(fields[1]);
+                    if (type == null) {
+                        drop(peerId, frame, "unknown message type " + fields[1]);
+                        return;
+                    }
+                }
+                Room room = server.getRoomManager().findRoomByName(fields[0]);
+                if (room == null) {
+                    room = server.getRoomManager().addRemoteRoom(fields[0], 0);
+                }
+                if (room != null) {
+                    room.deliver(fields[2], null, type);
+                }
+            }
+            case ClusterCodec.PRIVATE -> {
+                ClientHandler recipient = server.findClientByUsername(fields[0]);
+                if (recipient != null) {
+                    recipient.sendMessage(fields[1]);
+                }
+            }
+            case ClusterCodec.USER_ONLINE -> directory.put(ClientRegistry.normalize(fields[0]), peerId);
+            case ClusterCodec.USER_OFFLINE -> directory.remove(ClientRegistry.normalize(fields[0]), peerId);
+            case ClusterCodec.ROOM_CREATED -> {
+                int capacity;
+                try {
+                    capacity = Integer.parseInt(fields[1]);
+                } catch (NumberFormatException e) {
+                    drop(peerId, frame, "bad capacity " + fields[1]);
+                    return;
+                }
+                server.getRoomManager().addRemoteRoom(fields[0], capacity);
+            }
+            default -> throw new IllegalStateException("unreachable");
+        }
+    }
+
+    private static void drop(String peerId, ClusterCodec.Frame frame, String reason) {
+        Metrics.clusterFrameDropped();
+        ChatLog.warn("Dropped cluster frame " + frame.kind() + " from " + peerId + ": " + reason);
+    }
+
+    private static MessageType typeNamed(String name) {
+        for (MessageType type : MessageType.values()) {
+            if (type.name().equals(name)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    void linkUp(PeerLink peer) {
+        peersByNodeId.put(peer.getRemoteNodeId(), peer);
+    }
+
+    List<String> localUsernames() {
+        List<String> names = new ArrayList<>();
+        for (ClientHandler client : server.getClients()) {
+            if (client.isLoggedIn()) {
+                names.add(client.getUsername());
+            }
+        }
+        return names;
+    }
+
+    // Rooms made with /create, announced to a peer when its link comes up
+    List<Room> createdRooms() {
+        List<Room> created = new ArrayList<>();
+        for (Room room : server.getRoomManager().getRooms()) {
+            if (!room.isPermanent()) {
+                created.add(room);
+            }
+        }
+        return created;
+    }
+
+    public void roomCreated(Room room) {
+        sendToAll(ClusterCodec.encode(ClusterCodec.ROOM_CREATED, room.getRoomName(),
+                Integer.toString(room.getMaxCapacity())));
+    }
+
+    // Encoded once, the same read-only frame is queued to every peer
+    public void forwardRoom(String roomName, String line, MessageType type) {
+        if (peers.isEmpty()) {
+            return;
+        }
+        ByteBuffer frame = ClusterCodec.encode(ClusterCodec.ROOM, roomName, type == null ? "" : type.name(), line);
+        for (PeerLink peer : peers) {
+            peer.send(frame);
+        }
+    }
+
+    // False if no other node has the user
+    public boolean forwardPrivate(String username, String line) {
+        String owner = directory.get(ClientRegistry.normalize(username));
+        PeerLink peer = owner != null ? peersByNodeId.get(owner) : null;
+        if (peer == null) {
+            return false;
+        }
+        peer.send(ClusterCodec.encode(ClusterCodec.PRIVATE, username, line));
+        return true;
+    }
+
+    public boolean isRemoteUser(String username) {
+        return directory.containsKey(ClientRegistry.normalize(username));
+    }
+
+    public void userOnline(String username) {
+        sendToAll(ClusterCodec.encode(ClusterCodec.USER_ONLINE, username));
+    }
+
+    public void userOffline(String username) {
+        sendToAll(ClusterCodec.encode(ClusterCodec.USER_OFFLINE, username));
+    }
+
+    private void sendToAll(ByteBuffer frame) {
+        for (PeerLink peer : peers) {
+            peer.send(frame);
+        }
+    }
+
+    public int getConnectedPeers() {
+        int connected = 0;
+        for (PeerLink peer : peers) {
+            if (peer.isConnected()) {
+                connected++;
+            }
+        }
+        return connected;
+    }
+
+    public int getRemoteUsers() {
+        return directory.size();
+    }
+
+    public long getQueuedFrames() {
+        long queued = 0;
+        for (PeerLink peer : peers) {
+            queued += peer.getQueuedFrames();
+        }
+        return queued;
+    }
+}
@@ -0,0 +1,76 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// Transport under en ClientHandler, so the same command/protocol code runs on
+// blocking sockets (thread per connection) and on NIO channels (event loop)
+public interface Connection {
+
+    // Queue one line of text for the client; the line terminator is added here
+    default void sendLine(String line) {
+        sendFrame(Frames.encodeLine(line));
+    }
+
+    // Queue an already encoded, read-only frame. The buffer may be shared with other
+    // connections, so implementations must never move its position or modify it.
+    void sendFrame(ByteBuffer frame);
+
+    // Queue several frames so they go out together, e.g. scrollback on join
+    default void sendFrames(List<ByteBuffer> frames) {
+        for (ByteBuffer frame : frames) {
+            sendFrame(frame);
+        }
+    }
+
+    // A frame in whichever format the connection is in (text until startBinary); transports
+    // with a compressed stream may queue a broadcast's shared compressed form
+    void sendShared(SharedFrame frame);
+
+    // Several SharedFrames as one batch
+    default void sendAllShared(List<SharedFrame> frames) {
+        for (SharedFrame frame : frames) {
+            sendShared(frame);
+        }
+    }
+
+    // Queue `reply` as the last text frame and send SharedFrames in binary format after it,
+    // as one step, so nothing queued concurrently by other threads ends up in the wrong format
+    void startBinary(ByteBuffer reply);
+
+    // Queue `reply` as the last uncompressed frame and Deflate everything after it
+    // (StreamCompressor); false if this transport cannot compress
+    default boolean startCompression(ByteBuffer reply) {
+        return false;
+    }
+
+    // Never drop a queued frame from now on; fall behind too far and the connection closes.
+    // A Session asks for this, since its client counts every frame it receives.
+    default void disconnectOnOverflow() {
+    }
+
+    // Frames waiting to be written, for metrics
+    default int getQueuedFrames() {
+        return 0;
+    }
+
+    // May the thread delivering this connection's input be parked (rate limit DELAY)?
+    // Not on an event loop thread that serves other connections too.
+    default boolean canBlock() {
+        return true;
+    }
+
+    int getRemotePort();
+
+    String getRemoteAddress();
+
+    // Graceful: what is already queued is still written
+    void close();
+
+    // Close without writing anything more, e.g. for a peer that stopped answering
+    default void abort() {
+        close();
+    }
+
+    boolean isOpen();
+}
@@ -0,0 +1,136 @@
+package org.example;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Local credential file for Server --credentials FILE. One user per line:
+//
+//   username:iterations:salt:hash        salt and hash in Base64, hash = PBKDF2WithHmacSHA256
+//
+// Each user has a random 16-byte salt, and the iteration count is stored per line, so
+// raising -Dchat.auth.iterations only affects passwords set after the change. Add or
+// replace a user (prompts for the password, or reads it from stdin):
+//
+//   java org.example.CredentialStore add users.txt alice
+public final class CredentialStore {
+    static final int ITERATIONS = Integer.getInteger("chat.auth.iterations", 210_000);
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private record Entry(int iterations, byte[] salt, byte[] hash) {
+    }
+
+    private final Map<String, Entry> users = new ConcurrentHashMap<>();
+    // Unknown names are checked against this, so a miss costs as much as a wrong password
+    private final Entry dummy = new Entry(ITERATIONS, new byte[SALT_BYTES], new byte[HASH_BITS / 8]);
+
+    public static CredentialStore load(Path file) throws IOException {
+        CredentialStore store = new CredentialStore();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(":");
+            if (fields.length != 4) {
+                throw new IOException(file + ":" + lineNumber + ": expected username:iterations:salt:hash");
+            }
+            Base64.Decoder base64 = Base64.getDecoder();
+            Entry entry;
+            try {
+                entry = new Entry(Integer.parseInt(fields[1]), base64.decode(fields[2]), base64.decode(fields[3]));
+            } catch (IllegalArgumentException e) {  // NumberFormatException or bad Base64
+                throw new IOException(file + ":" + lineNumber + ": " + e.getMessage(), e);
+            }
+            // PBEKeySpec would only refuse these at the first login
+            if (entry.iterations() < 1 || entry.salt().length == 0) {
+                throw new IOException(file + ":" + lineNumber + ": iterations must be positive and the salt not empty");
+            }
+            store.users.put(ClientRegistry.normalize(fields[0]), entry);
+        }
+        return store;
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    // Expensive on purpose (PBKDF2); call from the Authenticator pool, not a connection thread
+    public boolean verify(String username, String password) {
+        Entry entry = users.get(ClientRegistry.normalize(username));
+        boolean known = entry != null;
+        if (!known) {
+            entry = dummy;
+        }
+        byte[] hash = hash(password, entry.salt(), entry.iterations());
+        return MessageDigest.isEqual(hash, entry.hash()) && known;
+    }
+
+    static byte[] hash(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2WithHmacSHA256 not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    static String line(String username, String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        new SecureRandom().nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder();
+        return username + ":" + ITERATIONS + ":" + base64.encodeToString(salt) + ":"
+                + base64.encodeToString(hash(password, salt, ITERATIONS));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 || !args[0].equals("add") || args[2].contains(":") || args[2].contains(" ")) {
+            System.err.println("Usage: java org.example.CredentialStore add <file> <username>");
+            System.exit(2);
+        }
+        Path file = Path.of(args[1]);
+        String username = args[2];
+        String password;
+        Console console = System.console();
+        if (console != null) {
+            password = new String(console.readPassword("Password for %s: ", username));
+        } else {
+            password = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)).readLine();
+        }
+        if (password == null || password.isEmpty()) {
+            System.err.println("Empty password");
+            System.exit(2);
+        }
+
+        StringBuilder out = new StringBuilder();
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (!line.split(":", 2)[0].equalsIgnoreCase(username)) {
+                    out.append(line).append('\n');
+                }
+            }
+        }
+        out.append(line(username, password)).append('\n');
+        Files.writeString(file, out, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        System.out.println("Saved " + username + " to " + file);
+    }
+}
@@ -0,0 +1,103 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Client side of FileTransferServer: one side-port connection per transfer, zero-copy
+// both ways, and resuming from wherever the other end already is. A download goes into
+// "<name>.part" and only becomes <name> once complete, so only a .part file is ever resumed
+// and an unrelated file that happens to have the same name is never appended to.
+public final class FileTransferClient {
+
+    private FileTransferClient() {
+    }
+
+    // PUT: the server says how much it already has, we send the rest
+    public static void upload(String host, int port, String ticket, Path file) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+             FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            writeLine(channel, "PUT " + ticket);
+            String reply = readLine(channel);
+            if (!reply.startsWith("OFFSET ")) {
+                throw new IOException(reply);
+            }
+            long position = Long.parseLong(reply.substring(7));
+            long size = in.size();
+            if (position < 0 || position > size) {
+                throw new IOException("server has " + position + " bytes of a " + size + " byte file");
+            }
+            while (position < size) {
+                position += in.transferTo(position, size - position, channel);
+            }
+        }
+    }
+
+    // GET: resume after whatever part of the file an earlier attempt left in <target>.part.
+    // `size` is the size the server announced with the ticket.
+    public static void download(String host, int port, String ticket, Path target, long size) throws IOException {
+        Path part = partFile(target);
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+             FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long offset = out.size();
+            if (offset > size) {
+                // Not a piece of this file after all: start over
+                out.truncate(0);
+                offset = 0;
+            }
+            writeLine(channel, "GET " + ticket + " " + offset);
+            String reply = readLine(channel);
+            if (!reply.startsWith("SIZE ")) {
+                throw new IOException(reply);
+            }
+            if (Long.parseLong(reply.substring(5)) != size) {
+                throw new IOException("server sends " + reply.substring(5) + " bytes, expected " + size);
+            }
+            long position = offset;
+            while (position < size) {
+                long moved = out.transferFrom(channel, position, size - position);
+                if (moved <= 0) {
+                    throw new IOException("connection closed at " + position + " of " + size + " bytes");
+                }
+                position += moved;
+            }
+            out.force(false);
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static Path partFile(Path target) {
+        return target.resolveSibling(target.getFileName() + ".part");
+    }
+
+    private static void writeLine(SocketChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // One byte at a time, so the file data after the line stays in the socket
+    private static String readLine(SocketChannel channel) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            one.clear();
+            if (channel.read(one) < 0) {
+                throw new IOException("connection closed");
+            }
+            char c = (char) one.get(0);
+            if (c == '\n') {
+                return line.toString();
+            }
+            line.append(c);
+        }
+    }
+}
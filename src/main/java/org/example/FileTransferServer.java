@@ -0,0 +1,474 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// File transfer on a side port, so file bytes never share a connection with chat lines.
+// The chat connection only hands out tickets:
+//
+//   /upload <name> <size>   ->  FILE_UPLOAD <ticket> <port> <name>
+//   /download <fileId>      ->  FILE_DOWNLOAD <ticket> <port> <name> <size>
+//
+// and the client then opens the side port and sends one header line:
+//
+//   PUT <ticket>             server answers "OFFSET <n>", client sends bytes n..size
+//   GET <ticket> <offset>    server answers "SIZE <size>", then sends bytes offset..size
+//
+// Uploads go socket -> spool file with FileChannel.transferFrom and downloads spool file ->
+// socket with transferTo, in CHUNK steps, so file contents never pass through the heap.
+// A broken transfer resumes from the offset: uploads from what the spool already has,
+// downloads from what the client already has. Each user's transfers share one
+// bandwidth cap (-Dchat.file.bytesPerSecond, 0 = unlimited).
+//
+// File ids live in memory only, so the spool is emptied when the server starts.
+//
+// Limits, so tickets and the spool cannot grow without bound:
+//
+//   -Dchat.file.ticketSeconds=600        a ticket unused this long (no transfer, no resume) expires
+//   -Dchat.file.incompleteSeconds=3600   an upload that stopped this long ago is deleted
+//   -Dchat.file.retentionSeconds=86400   a finished file is deleted this long after its upload
+//   -Dchat.file.idleSeconds=60           a transfer (or its header) that moves nothing this long is cut
+//   -Dchat.file.spoolBytes=10737418240   all spooled files together, counted from /upload
+//   -Dchat.file.uploadsPerUser=3         unfinished uploads per user
+public class FileTransferServer {
+    static final int CHUNK = 64 * 1024;
+    static final long MAX_FILE_BYTES = Long.getLong("chat.file.maxBytes", 1L << 30);
+    static final long BYTES_PER_SECOND = Long.getLong("chat.file.bytesPerSecond", 4L << 20);
+    static final long TICKET_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("chat.file.ticketSeconds", 600));
+    static final long INCOMPLETE_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("chat.file.incompleteSeconds", 3600));
+    static final long RETENTION_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("chat.file.retentionSeconds", 86400));
+    static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("chat.file.idleSeconds", 60));
+    static final long MAX_SPOOL_BYTES = Long.getLong("chat.file.spoolBytes", 10L << 30);
+    static final int MAX_UPLOADS_PER_USER = Integer.getInteger("chat.file.uploadsPerUser", 3);
+    private static final int MAX_HEADER = 256;
+
+    private static final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "file-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int port;
+    private final Path spool;
+    private final HashedWheelTimer timer;
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentHashMap<String, SpooledFile> files = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Ticket> tickets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TokenBucket> bandwidth = new ConcurrentHashMap<>();
+    // Bytes promised to files in the spool (their full size from /upload on)
+    private final AtomicLong spoolBytes = new AtomicLong();
+    // Normalized username -> unfinished uploads
+    private final ConcurrentHashMap<String, Integer> uploading = new ConcurrentHashMap<>();
+    private volatile ServerSocketChannel serverChannel;
+
+    // One uploaded (or uploading) file in the spool
+    static final class SpooledFile {
+        final String id;
+        final String owner;
+        final String name;
+        final long size;
+        final Path path;
+        final Room room;
+        final AtomicBoolean transferring = new AtomicBoolean(false);
+        volatile boolean complete = false;
+        volatile long lastActivity = System.nanoTime();  // for deleting abandoned uploads
+        volatile long completedAt;                       // for deleting old files
+
+        SpooledFile(String id, String owner, String name, long size, Path path, Room room) {
+            this.id = id;
+            this.owner = owner;
+            this.name = name;
+            this.size = size;
+            this.path = path;
+            this.room = room;
+        }
+    }
+
+    static final class Ticket {
+        final SpooledFile file;
+        final String username;
+        final boolean upload;
+        private volatile long expires;
+
+        Ticket(SpooledFile file, String username, boolean upload) {
+            this.file = file;
+            this.username = username;
+            this.upload = upload;
+            touch();
+        }
+
+        // Every use and every chunk moved keeps the ticket alive for a resume
+        void touch() {
+            expires = System.nanoTime() + TICKET_NANOS;
+        }
+
+        boolean isExpired(long now) {
+            return now - expires > 0;
+        }
+    }
+
+    // Closes a transfer's channel once nothing has moved for IDLE_NANOS: a blocking read or
+    // transferFrom on a half-open connection would otherwise wait forever and keep the upload
+    // marked as transferring. One pending timeout, re-armed from lastActivity, like
+    // ClientHandler's heartbeat.
+    private final class Watchdog {
+        private final SocketChannel channel;
+        private volatile long lastActivity = System.nanoTime();
+        private volatile boolean done = false;
+
+        Watchdog(SocketChannel channel) {
+            this.channel = channel;
+            timer.schedule(this::check, IDLE_NANOS, TimeUnit.NANOSECONDS);
+        }
+
+        void touch() {
+            lastActivity = System.nanoTime();
+        }
+
+        // About to sleep for the bandwidth cap, which is not idleness
+        void pausing(long nanos) {
+            lastActivity = System.nanoTime() + nanos;
+        }
+
+        void done() {
+            done = true;
+        }
+
+        // Timer thread: only closes, never blocks
+        private void check() {
+            if (done) {
+                return;
+            }
+            long idle = System.nanoTime() - lastActivity;
+            if (idle >= IDLE_NANOS) {
+                ChatLog.warn("File transfer from " + channel.socket().getInetAddress() + " timed out after "
+                        + TimeUnit.NANOSECONDS.toSeconds(idle) + "s without progress");
+                try {
+                    channel.close();  // the blocked transfer fails and releases the file
+                } catch (IOException e) {
+                    // closing anyway
+                }
+                return;
+            }
+            timer.schedule(this::check, IDLE_NANOS - idle, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public FileTransferServer(int port, Path spool, HashedWheelTimer timer) {
+        this.port = port;
+        this.spool = spool;
+        this.timer = timer;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void start() throws IOException {
+        Files.createDirectories(spool);
+        // Left over from the last run: nothing refers to those files any more. Only names
+        // newId() makes, in case the directory holds anything else.
+        try (Stream<Path> leftover = Files.list(spool)) {
+            for (Path path : (Iterable<Path>) leftover::iterator) {
+                if (path.getFileName().toString().matches("[0-9a-f]{24}") && Files.isRegularFile(path)) {
+                    Files.delete(path);
+                }
+            }
+        }
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        this.serverChannel = serverChannel;
+        Thread acceptor = new Thread(() -> acceptLoop(serverChannel), "file-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        long period = Math.max(1, Math.min(TICKET_NANOS, Math.min(INCOMPLETE_NANOS, RETENTION_NANOS)) / 4);
+        reaper.scheduleWithFixedDelay(this::reap, period, period, TimeUnit.NANOSECONDS);
+        ChatLog.info("File transfer listening on port " + port + ", spool " + spool.toAbsolutePath());
+    }
+
+    // Stop taking new transfers; running ones go on until they finish or the process exits.
+    // Nothing resumes after a restart: the spool is emptied when the server starts again.
+    public void stop() throws IOException {
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+    }
+
+    private String newId() {
+        byte[] bytes = new byte[12];
+        random.nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    // Returns the upload ticket, or null if the size is not acceptable, the owner has
+    // MAX_UPLOADS_PER_USER unfinished uploads or the spool has no room for `size` more bytes
+    public String offerUpload(String owner, Room room, String name, long size) {
+        if (size <= 0 || size > MAX_FILE_BYTES) {
+            return null;
+        }
+        String user = ClientRegistry.normalize(owner);
+        if (!reserveUpload(user)) {
+            return null;
+        }
+        if (spoolBytes.addAndGet(size) > MAX_SPOOL_BYTES) {
+            spoolBytes.addAndGet(-size);
+            releaseUpload(user);
+            return null;
+        }
+        String id = newId();
+        SpooledFile file = new SpooledFile(id, owner, name, size, spool.resolve(id), room);
+        files.put(id, file);
+        String ticket = newId();
+        tickets.put(ticket, new Ticket(file, owner, true));
+        return ticket;
+    }
+
+    public int getUploadsInProgress(String username) {
+        return uploading.getOrDefault(ClientRegistry.normalize(username), 0);
+    }
+
+    private boolean reserveUpload(String user) {
+        boolean[] reserved = {false};
+        uploading.compute(user, (name, count) -> {
+            int current = count == null ? 0 : count;
+            if (current >= MAX_UPLOADS_PER_USER) {
+                return count;
+            }
+            reserved[0] = true;
+            return current + 1;
+        });
+        return reserved[0];
+    }
+
+    private void releaseUpload(String user) {
+        uploading.computeIfPresent(user, (name, count) -> count > 1 ? count - 1 : null);
+    }
+
+    // Drop expired tickets, delete uploads nobody has continued for INCOMPLETE_NANOS and
+    // finished files older than RETENTION_NANOS
+    void reap() {
+        long now = System.nanoTime();
+        tickets.values().removeIf(ticket -> ticket.isExpired(now));
+        for (SpooledFile file : files.values()) {
+            if (file.complete) {
+                if (now - file.completedAt >= RETENTION_NANOS) {
+                    // A download still running keeps reading from its open channel
+                    delete(file);
+                    ChatLog.info("Deleted " + file.name + " by " + file.owner + " after the retention time");
+                }
+                continue;
+            }
+            if (now - file.lastActivity < INCOMPLETE_NANOS || !file.transferring.compareAndSet(false, true)) {
+                continue;  // transferring stays set, so a late PUT cannot reopen the file
+            }
+            delete(file);
+            releaseUpload(ClientRegistry.normalize(file.owner));
+            ChatLog.info("Deleted abandoned upload " + file.name + " by " + file.owner);
+        }
+    }
+
+    private void delete(SpooledFile file) {
+        files.remove(file.id, file);
+        tickets.values().removeIf(ticket -> ticket.file == file);
+        spoolBytes.addAndGet(-file.size);
+        try {
+            Files.deleteIfExists(file.path);
+        } catch (IOException e) {
+            ChatLog.warn("Could not delete spooled file " + file.path + ": " + e.getMessage());
+        }
+    }
+
+    public SpooledFile find(String fileId) {
+        SpooledFile file = files.get(fileId);
+        return file != null && file.complete ? file : null;
+    }
+
+    public String offerDownload(SpooledFile file, String username) {
+        String ticket = newId();
+        tickets.put(ticket, new Ticket(file, username, false));
+        return ticket;
+    }
+
+    private void acceptLoop(ServerSocketChannel serverChannel) {
+        while (true) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                Thread.ofVirtual().name("file-" + channel.socket().getPort()).start(() -> serve(channel));
+            } catch (ClosedChannelException e) {
+                return;  // stop()
+            } catch (IOException e) {
+                ChatLog.error("File transfer accept failed: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        Watchdog watchdog = new Watchdog(channel);
+        try (channel) {
+            String[] header = readHeader(channel).split(" ");  // within IDLE_NANOS, or the watchdog closes
+            watchdog.touch();
+            Ticket ticket = header.length >= 2 ? tickets.get(header[1]) : null;
+            if (ticket != null && ticket.isExpired(System.nanoTime())) {
+                tickets.remove(header[1], ticket);
+                ticket = null;
+            }
+            if (ticket == null) {
+                reply(channel, "ERR unknown ticket");
+                return;
+            }
+            ticket.touch();
+            if (header[0].equals("PUT") && ticket.upload) {
+                receive(channel, ticket, watchdog);
+            } else if (header[0].equals("GET") && !ticket.upload && header.length == 3) {
+                if (send(channel, ticket, Long.parseLong(header[2]), watchdog)) {
+                    tickets.remove(header[1]);  // a broken download keeps its ticket for the resume
+                }
+            } else {
+                reply(channel, "ERR bad request");
+            }
+        } catch (IOException | NumberFormatException e) {
+            ChatLog.warn("File transfer aborted: " + e.getMessage());
+        } finally {
+            watchdog.done();
+        }
+    }
+
+    private void receive(SocketChannel channel, Ticket ticket, Watchdog watchdog) throws IOException {
+        SpooledFile file = ticket.file;
+        if (!file.transferring.compareAndSet(false, true)) {
+            reply(channel, "ERR upload already in progress");
+            return;
+        }
+        try (FileChannel out = FileChannel.open(file.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long offset = Math.min(out.size(), file.size);
+            reply(channel, "OFFSET " + offset);
+            TokenBucket cap = capFor(ticket.username);
+            while (offset < file.size) {
+                long moved = out.transferFrom(channel, offset, Math.min(CHUNK, file.size - offset));
+                if (moved <= 0) {
+                    return;  // client went away; the spool keeps what arrived for a resumed PUT
+                }
+                offset += moved;
+                file.lastActivity = System.nanoTime();
+                ticket.touch();
+                watchdog.touch();
+                Metrics.fileBytesIn(moved);
+                pace(cap, moved, watchdog);
+            }
+            out.force(false);
+        } finally {
+            file.lastActivity = System.nanoTime();
+            file.transferring.set(false);
+        }
+
+        file.completedAt = System.nanoTime();
+        file.complete = true;
+        releaseUpload(ClientRegistry.normalize(file.owner));
+        tickets.values().removeIf(t -> t.file == file && t.upload);
+        Metrics.fileUploaded();
+        ChatLog.info("File uploaded: " + file.name + " (" + file.size + " bytes) by " + file.owner);
+        if (file.room != null) {
+            file.room.broadcastToRoom(file.owner + " shared file: " + file.name + " (" + file.size
+                    + " bytes), get it with /download " + file.id, null, MessageType.FILE_TRANSFER);
+        }
+    }
+
+    // True once the whole file has been sent
+    private boolean send(SocketChannel channel, Ticket ticket, long offset, Watchdog watchdog) throws IOException {
+        SpooledFile file = ticket.file;
+        if (offset < 0 || offset > file.size) {
+            reply(channel, "ERR bad offset");
+            return false;
+        }
+        reply(channel, "SIZE " + file.size);
+        TokenBucket cap = capFor(ticket.username);
+        try (FileChannel in = FileChannel.open(file.path, StandardOpenOption.READ)) {
+            long position = offset;
+            while (position < file.size) {
+                // Blocks while the socket buffer is full, which is the flow control
+                long moved = in.transferTo(position, Math.min(CHUNK, file.size - position), channel);
+                if (moved <= 0) {
+                    return false;
+                }
+                position += moved;
+                ticket.touch();
+                watchdog.touch();
+                Metrics.fileBytesOut(moved);
+                pace(cap, moved, watchdog);
+            }
+        }
+        return true;
+    }
+
+    private TokenBucket capFor(String username) {
+        if (BYTES_PER_SECOND <= 0) {
+            return null;
+        }
+        // Burst of one chunk: smooth, but still big transferTo calls
+        return bandwidth.computeIfAbsent(ClientRegistry.normalize(username), name -> new TokenBucket(BYTES_PER_SECOND, CHUNK));
+    }
+
+    private static void pace(TokenBucket cap, long bytes, Watchdog watchdog) throws IOException {
+        if (cap == null) {
+            return;
+        }
+        long wait = cap.reserve(bytes);
+        if (wait > 0) {
+            watchdog.pausing(wait);
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+        }
+    }
+
+    // Header bytes are read one at a time so nothing after the newline is consumed
+    private static String readHeader(SocketChannel channel) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        byte[] line = new byte[MAX_HEADER];
+        int length = 0;
+        while (true) {
+            one.clear();
+            if (channel.read(one) < 0) {
+                throw new IOException("closed before header");
+            }
+            byte b = one.get(0);
+            if (b == '\n') {
+                break;
+            }
+            if (length == MAX_HEADER) {
+                throw new IOException("header too long");
+            }
+            line[length++] = b;
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8).trim();
+    }
+
+    private static void reply(SocketChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+// Inbound framing for one connection: text lines until the client negotiates
+// binary mode, length-prefixed BinaryCodec frames after that.
+public class FrameDecoder {
+    private final LineDecoder lineDecoder = new LineDecoder();
+    private final Consumer<String> lineConsumer;
+    private final Consumer<Message> messageConsumer;
+    private volatile boolean binary = false;
+
+    // Only allocated once the client switches to binary
+    private ByteBuffer partial;
+    private byte[] scratch;
+
+    public FrameDecoder(Consumer<String> lineConsumer, Consumer<Message> messageConsumer) {
+        this.lineConsumer = lineConsumer;
+        this.messageConsumer = messageConsumer;
+    }
+
+    // Takes effect for the very next byte, even if it is already in the current read buffer
+    public void switchToBinary() {
+        if (!binary) {
+            partial = ByteBuffer.allocate(256);
+            scratch = new byte[256];
+            binary = true;
+        }
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    // Throws IllegalStateException on an oversized line or a malformed frame
+    public void decode(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (binary) {
+                Message message = nextMessage(buffer);
+                if (message == null) {
+                    return;
+                }
+                messageConsumer.accept(message);
+            } else {
+                String line = lineDecoder.nextLine(buffer);
+                if (line == null) {
+                    return;
+                }
+                lineConsumer.accept(line);
+            }
+        }
+    }
+
+    private Message nextMessage(ByteBuffer buffer) {
+        // Fast path: the whole frame is in the read buffer, decode it in place
+        if (partial.position() == 0 && buffer.remaining() >= 4) {
+            int length = BinaryCodec.checkLength(buffer.getInt(buffer.position()));
+            if (buffer.remaining() >= 4 + length) {
+                int limit = buffer.limit();
+                int end = buffer.position() + 4 + length;
+                if (!buffer.hasArray() && scratch.length < length) {
+                    scratch = new byte[Math.max(length, scratch.length * 2)];
+                }
+                buffer.position(buffer.position() + 4).limit(end);
+                Message message = BinaryCodec.decode(buffer, scratch);
+                buffer.limit(limit).position(end);
+                return message;
+            }
+        }
+
+        // Slow path: the frame spans reads, collect it first
+        if (partial.position() < 4) {
+            copy(buffer, 4 - partial.position());
+            if (partial.position() < 4) {
+                return null;
+            }
+        }
+        int length = BinaryCodec.checkLength(partial.getInt(0));
+        if (partial.capacity() < 4 + length) {
+            ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+            partial.flip();
+            bigger.put(partial);
+            partial = bigger;
+        }
+        copy(buffer, 4 + length - partial.position());
+        if (partial.position() < 4 + length) {
+            return null;
+        }
+        partial.flip().position(4);
+        Message message = BinaryCodec.decode(partial, scratch);
+        partial.clear();
+        return message;
+    }
+
+    private void copy(ByteBuffer from, int max) {
+        int count = Math.min(max, from.remaining());
+        int limit = from.limit();
+        from.limit(from.position() + count);
+        partial.put(from);
+        from.limit(limit);
+    }
+}
@@ -0,0 +1,16 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Encoding of outgoing text lines into byte frames.
+// A frame is read-only and may be shared by any number of connections;
+// each connection queues its own duplicate() (new position/limit, same bytes).
+public final class Frames {
+    private Frames() {
+    }
+
+    public static ByteBuffer encodeLine(String line) {
+        return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+}
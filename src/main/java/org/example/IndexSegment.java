@@ -0,0 +1,244 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// One immutable, memory-mapped piece of a SearchIndex:
+//
+//   int magic | int level | long start | long end | int terms | int table
+//   postings    per term its log offsets, ascending, as varint deltas (the first from 0)
+//   int[terms]  at `table`: position of each dictionary entry, terms in String order for binary search
+//   entries     short length | UTF-8 term | int postings | int position | int bytes
+//
+// [start, end) is the part of the room log it covers. Offsets are a few hundred bytes apart
+// in a busy room, so most deltas take one or two bytes instead of eight. The postings come
+// first so the Writer can stream them to the file as terms are added.
+final class IndexSegment {
+    static final int MAGIC = 0x43494432;  // "CID2"
+    private static final int HEADER = 32;
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final int level;
+    private final long start;
+    private final long end;
+    private final int terms;
+    private final int table;
+
+    private IndexSegment(Path path, MappedByteBuffer buffer) throws IOException {
+        this.path = path;
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an index segment: " + path);
+        }
+        this.level = buffer.getInt(4);
+        this.start = buffer.getLong(8);
+        this.end = buffer.getLong(16);
+        this.terms = buffer.getInt(24);
+        this.table = buffer.getInt(28);
+        if (table < HEADER || (long) table + 4L * terms > buffer.limit()) {
+            throw new IOException("Corrupt index segment: " + path);
+        }
+    }
+
+    static IndexSegment open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new IndexSegment(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    int getLevel() {
+        return level;
+    }
+
+    long getStart() {
+        return start;
+    }
+
+    long getEnd() {
+        return end;
+    }
+
+    int getTermCount() {
+        return terms;
+    }
+
+    long getBytes() {
+        return buffer.limit();
+    }
+
+    String term(int index) {
+        int entry = buffer.getInt(table + 4 * index);
+        byte[] bytes = new byte[buffer.getShort(entry)];
+        buffer.get(entry + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // The term's log offsets, ascending, or null if it does not occur here
+    long[] postings(String term) {
+        int low = 0;
+        int high = terms - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int compared = term(middle).compareTo(term);
+            if (compared < 0) {
+                low = middle + 1;
+            } else if (compared > 0) {
+                high = middle - 1;
+            } else {
+                return postingsAt(middle);
+            }
+        }
+        return null;
+    }
+
+    long[] postingsAt(int index) {
+        int entry = buffer.getInt(table + 4 * index);
+        int position = entry + 2 + buffer.getShort(entry);
+        long[] postings = new long[buffer.getInt(position)];
+        int read = buffer.getInt(position + 4);
+        long value = 0;
+        for (int i = 0; i < postings.length; i++) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(read++);
+                delta |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            value += delta;
+            postings[i] = value;
+        }
+        return postings;
+    }
+
+    // Builds a segment from terms added in String order; single use. Postings go straight to
+    // a temporary file through a small buffer, so only the dictionary is kept in memory. The
+    // file is forced and moved into place by finish, so a crash never leaves half a segment
+    // under the real name; closing an unfinished Writer deletes it.
+    static final class Writer implements AutoCloseable {
+        private final Path path;
+        private final Path temporary;
+        private final FileChannel channel;
+        private final ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+        private final List<byte[]> termBytes = new ArrayList<>();
+        private int[] counts = new int[1024];
+        private int[] positions = new int[1024];
+        private int[] lengths = new int[1024];
+        private long written = HEADER;  // file position of out's first byte
+        private long postingCount = 0;
+        private boolean finished = false;
+
+        Writer(Path path) throws IOException {
+            this.path = path;
+            this.temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            this.channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        }
+
+        void add(String term, long[] offsets, int count) throws IOException {
+            int index = termBytes.size();
+            if (index == counts.length) {
+                counts = Arrays.copyOf(counts, index * 2);
+                positions = Arrays.copyOf(positions, index * 2);
+                lengths = Arrays.copyOf(lengths, index * 2);
+            }
+            termBytes.add(term.getBytes(StandardCharsets.UTF_8));
+            counts[index] = count;
+            long position = written + out.position();
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                if (out.remaining() < 10) {
+                    drain();
+                }
+                long delta = offsets[i] - previous;
+                previous = offsets[i];
+                while ((delta & ~0x7fL) != 0) {
+                    out.put((byte) ((delta & 0x7f) | 0x80));
+                    delta >>>= 7;
+                }
+                out.put((byte) delta);
+            }
+            long length = written + out.position() - position;
+            if (written + out.position() > Integer.MAX_VALUE) {
+                throw new IOException("Index segment too large: " + path);
+            }
+            positions[index] = (int) position;
+            lengths[index] = (int) length;
+            postingCount += count;
+        }
+
+        private void drain() throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                written += channel.write(out, written);
+            }
+            out.clear();
+        }
+
+        long getPostingCount() {
+            return postingCount;
+        }
+
+        IndexSegment finish(int level, long start, long end) throws IOException {
+            drain();
+            int terms = termBytes.size();
+            int dictionary = 0;
+            for (byte[] term : termBytes) {
+                dictionary += 2 + term.length + 12;
+            }
+            long table = written;
+            if (table + 4L * terms + dictionary > Integer.MAX_VALUE) {
+                throw new IOException("Index segment too large: " + path);
+            }
+            ByteBuffer tail = ByteBuffer.allocate(4 * terms + dictionary);
+            int entry = (int) table + 4 * terms;
+            for (int i = 0; i < terms; i++) {
+                tail.putInt(entry);
+                entry += 2 + termBytes.get(i).length + 12;
+            }
+            for (int i = 0; i < terms; i++) {
+                byte[] term = termBytes.get(i);
+                tail.putShort((short) term.length).put(term).putInt(counts[i]).putInt(positions[i]).putInt(lengths[i]);
+            }
+            tail.flip();
+            while (tail.hasRemaining()) {
+                written += channel.write(tail, written);
+            }
+            ByteBuffer head = ByteBuffer.allocate(HEADER);
+            head.putInt(MAGIC).putInt(level).putLong(start).putLong(end).putInt(terms).putInt((int) table).flip();
+            long position = 0;
+            while (head.hasRemaining()) {
+                position += channel.write(head, position);
+            }
+            channel.force(true);
+            channel.close();
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+            finished = true;
+            return open(path);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            if (!finished) {
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+}
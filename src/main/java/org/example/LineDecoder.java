@@ -0,0 +1,57 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+// Splits a byte stream into '\n' terminated UTF-8 lines.
+// Bytes from a partial read are kept until the rest of the line arrives.
+public class LineDecoder {
+    public static final int DEFAULT_MAX_LINE_LENGTH = 64 * 1024;
+
+    private final int maxLineLength;
+    private byte[] pending = new byte[256];
+    private int pendingLength = 0;
+
+    public LineDecoder() {
+        this(DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    public LineDecoder(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    // Consume everything readable in the buffer and hand complete lines to the consumer.
+    // Throws IllegalStateException if a line grows past maxLineLength.
+    public void decode(ByteBuffer buffer, Consumer<String> lineConsumer) {
+        String line;
+        while ((line = nextLine(buffer)) != null) {
+            lineConsumer.accept(line);
+        }
+    }
+
+    // Read up to and including the next '\n'. Returns null (keeping the partial line)
+    // if the buffer runs out first, so a caller can change framing between lines.
+    public String nextLine(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                int length = pendingLength;
+                if (length > 0 && pending[length - 1] == '\r') {
+                    length--;
+                }
+                pendingLength = 0;
+                return new String(pending, 0, length, StandardCharsets.UTF_8);
+            }
+            if (pendingLength == maxLineLength) {
+                throw new IllegalStateException("Line longer than " + maxLineLength + " bytes");
+            }
+            if (pendingLength == pending.length) {
+                pending = Arrays.copyOf(pending, Math.min(pending.length * 2, maxLineLength));
+            }
+            pending[pendingLength++] = b;
+        }
+        return null;
+    }
+}
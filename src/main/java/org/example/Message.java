@@ -1,67 +1,162 @@
 package org.example;
 
-import java.time.LocalDate;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 
 public class Message {
+    // Shared: DateTimeFormatter is immutable and thread-safe, building one per message was pure garbage
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final MessageType[] TYPES = MessageType.values();
+
     private String clientId;
     private MessageType messageType;
-    private String timestamp;
+    private long timestampMillis;
     private String payload;
+    // Derived lazily, only when someone asks for the text form
+    private String timestamp;
+    // Set for messages that arrived as binary frames
+    private long clientNumber = -1;
+    // Set for parsed messages: clientId and timestamp are cut out of the raw line on first use
+    private String raw;
+    private int clientIdStart;
+    private int clientIdEnd;
+    private int timestampStart;
+    private int timestampEnd;
 
     public Message(String clientId, MessageType messageType, String payload) {
         this.clientId = clientId;
         this.messageType = messageType;
-        this.timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+        this.timestampMillis = System.currentTimeMillis();
         this.payload = payload;
     }
+    // Decoded from a binary frame (see BinaryCodec)
+    Message(long clientNumber, MessageType messageType, long timestampMillis, String payload) {
+        this.clientNumber = clientNumber;
+        this.messageType = messageType;
+        this.timestampMillis = timestampMillis;
+        this.payload = payload;
+    }
+
     public Message(String rawMessage) {
         parseMessage(rawMessage);
     }
 
+    // ClientID|timestamp|TYPE|payload, scanned by hand: the payload is the only new String.
+    // A numeric timestamp is read as epoch millis; either way the text form keeps the client's own string.
     private void parseMessage(String rawMessage) {
         try {
-            String[] parts = rawMessage.split("\\|", 4); // Split på |, max 4 dele
-            if (parts.length == 4) {
-                this.clientId = parts[0].trim();
-                this.timestamp = parts[1].trim();
-                this.messageType = MessageType.valueOf(parts[2].trim());
-                this.payload = parts[3].trim();
-            } else {
+            int first = rawMessage.indexOf('|');
+            int second = first < 0 ? -1 : rawMessage.indexOf('|', first + 1);
+            int third = second < 0 ? -1 : rawMessage.indexOf('|', second + 1);
+            if (third < 0) {
                 throw new IllegalArgumentException("Invalid message format");
             }
-        } catch (IllegalArgumentException e) {
-            System.err.println("Invalid message format");
-            parseMessageErrorHandling(rawMessage);
 
-        } catch (ArrayIndexOutOfBoundsException e) {
+            this.raw = rawMessage;
+            this.clientIdStart = trimStart(rawMessage, 0, first);
+            this.clientIdEnd = trimEnd(rawMessage, clientIdStart, first);
+
+            this.timestampStart = trimStart(rawMessage, first + 1, second);
+            this.timestampEnd = trimEnd(rawMessage, timestampStart, second);
+            this.timestampMillis = parseMillis(rawMessage, timestampStart, timestampEnd);
+            if (timestampMillis < 0) {
+                this.timestampMillis = System.currentTimeMillis();
+            }
+
+            this.messageType = parseType(rawMessage, trimStart(rawMessage, second + 1, third),
+                    trimEnd(rawMessage, second + 1, third));
+
+            int payloadStart = trimStart(rawMessage, third + 1, rawMessage.length());
+            this.payload = rawMessage.substring(payloadStart, trimEnd(rawMessage, payloadStart, rawMessage.length()));
+        } catch (IllegalArgumentException e) {
             parseMessageErrorHandling(rawMessage);
-            System.err.println("Array index out of bounds");
         } catch (NullPointerException e) {
             parseMessageErrorHandling(rawMessage);
         }
     }
     private void parseMessageErrorHandling(String rawMessage) {
-        System.err.println("Invalid message format");
+        Metrics.parseFailure();
+        ChatLog.warn("Invalid message format");
+        this.raw = null;
         this.clientId = "unknown";
-        this.timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+        this.timestampMillis = System.currentTimeMillis();
+        this.timestamp = null;
         this.messageType = MessageType.TEXT;
         this.payload = rawMessage;
     }
 
+    // Same whitespace rule as String.trim()
+    private static int trimStart(String s, int start, int end) {
+        while (start < end && s.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(String s, int start, int end) {
+        while (end > start && s.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    // Digits only, at most 18 of them (no overflow); -1 if it is not a millis value
+    private static long parseMillis(String s, int start, int end) {
+        if (start == end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    // Like MessageType.valueOf on the substring, without creating it
+    private static MessageType parseType(String s, int start, int end) {
+        for (MessageType type : TYPES) {
+            String name = type.name();
+            if (name.length() == end - start && s.regionMatches(start, name, 0, name.length())) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown message type");
+    }
+
 
     // Convert Message object til protocol string
     public String toProtocolString() {
-        return clientId + "|" + timestamp + "|" + messageType + "|" + payload;
+        return getClientId() + "|" + getTimestamp() + "|" + messageType + "|" + payload;
     }
 
     // Static factory methods fjernet - brug MessageFactory i stedet
 
     // Getters
-    public String getClientId() { return clientId; }
-    public String getTimestamp() { return timestamp; }
+    public String getClientId() {
+        if (clientId == null) {
+            clientId = raw != null ? raw.substring(clientIdStart, clientIdEnd) : "Client-" + clientNumber;
+        }
+        return clientId;
+    }
+    public String getTimestamp() {
+        if (timestamp == null && raw != null) {
+            timestamp = raw.substring(timestampStart, timestampEnd);
+        }
+        if (timestamp == null) {
+            timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(timestampMillis), ZoneId.systemDefault())
+                    .format(TIMESTAMP_FORMAT);
+        }
+        return timestamp;
+    }
     public MessageType getMessageType() { return messageType; }
+    long getClientNumber() { return clientNumber; }
+    public long getTimestampMillis() { return timestampMillis; }
     public String getPayload() { return payload; }
 
     // Check om beskeden er af en bestemt type
@@ -75,8 +170,8 @@ public class Message {
     @Override
     public String toString() {
         return "Message{" +
-                "clientId='" + clientId + '\'' +
-                ", timestamp='" + timestamp + '\'' +
+                "clientId='" + getClientId() + '\'' +
+                ", timestamp='" + getTimestamp() + '\'' +
                 ", messageType=" + messageType +
                 ", payload='" + payload + '\'' +
                 '}';
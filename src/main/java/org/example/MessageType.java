@@ -1,4 +1,19 @@
 package org.example;
 public enum MessageType {
-    TEXT, EMOJI, FILE_TRANSFER, LOGIN, JOIN_ROOM, PRIVATE
-}
\ No newline at end of file
+    TEXT, EMOJI, FILE_TRANSFER, LOGIN, JOIN_ROOM, PRIVATE, PING, PONG;
+
+    // One-byte tag used by the binary protocol; new types must be added at the end
+    private static final MessageType[] BY_TAG = values();
+
+    public byte tag() {
+        return (byte) ordinal();
+    }
+
+    public static MessageType fromTag(byte tag) {
+        if (tag < 0 || tag >= BY_TAG.length) {
+            // A malformed frame, like a bad length: the connection is dropped as a protocol error
+            throw new IllegalStateException("Unknown message type tag: " + tag);
+        }
+        return BY_TAG[tag];
+    }
+}
@@ -0,0 +1,292 @@
+package org.example;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Server-wide counters and histograms. Everything is a LongAdder, so recording from
+// many connection threads at once never contends on a single cache line.
+public final class Metrics {
+    private static final MessageType[] TYPES = MessageType.values();
+
+    private static final LongAdder connectionsOpened = new LongAdder();
+    private static final LongAdder connectionsClosed = new LongAdder();
+    private static final LongAdder logins = new LongAdder();
+    private static final LongAdder[] messagesIn = adders(TYPES.length);
+    // One extra slot for server notices (joined/left the room) that have no MessageType
+    private static final LongAdder[] messagesOut = adders(TYPES.length + 1);
+    private static final LongAdder bytesWritten = new LongAdder();
+    private static final LongAdder parseFailures = new LongAdder();
+    private static final LongAdder droppedFrames = new LongAdder();
+    private static final LongAdder slowConsumerDisconnects = new LongAdder();
+    private static final LongAdder[] rateLimited = adders(RateLimits.Scope.values().length);
+    private static final LongAdder rateDelayed = new LongAdder();
+    private static final LongAdder rateLimitDisconnects = new LongAdder();
+    private static final LongAdder pingsSent = new LongAdder();
+    private static final LongAdder idleReaped = new LongAdder();
+    private static final LongAdder filesUploaded = new LongAdder();
+    private static final LongAdder fileBytesIn = new LongAdder();
+    private static final LongAdder fileBytesOut = new LongAdder();
+    private static final LongAdder compressedConnections = new LongAdder();
+    private static final LongAdder compressBytesIn = new LongAdder();
+    private static final LongAdder compressBytesOut = new LongAdder();
+    private static final LongAdder compressNanos = new LongAdder();
+    private static final LongAdder sharedCompressedFrames = new LongAdder();
+    private static final LongAdder tlsHandshakes = new LongAdder();
+    private static final LongAdder tlsResumed = new LongAdder();
+    private static final LongAdder tlsFailures = new LongAdder();
+    private static final LongAdder authSuccesses = new LongAdder();
+    private static final LongAdder authFailures = new LongAdder();
+    private static final LongAdder authTokenLogins = new LongAdder();
+    private static final LongAdder authBusy = new LongAdder();
+    private static final Log2Histogram authNanos = new Log2Histogram();
+    private static final LongAdder sessionResumes = new LongAdder();
+    private static final LongAdder sessionReplayedFrames = new LongAdder();
+    private static final LongAdder sessionReplayGaps = new LongAdder();
+    private static final LongAdder sessionsExpired = new LongAdder();
+    private static final LongAdder searchIndexed = new LongAdder();
+    private static final LongAdder searchSegmentsWritten = new LongAdder();
+    private static final LongAdder searchMerges = new LongAdder();
+    private static final Log2Histogram searchNanos = new Log2Histogram();
+    private static final LongAdder clusterFramesOut = new LongAdder();
+    private static final LongAdder clusterFramesIn = new LongAdder();
+    private static final LongAdder clusterFramesDropped = new LongAdder();
+    private static final LongAdder clusterAuthFailures = new LongAdder();
+    private static final Log2Histogram fanOut = new Log2Histogram();
+    private static final Log2Histogram broadcastNanos = new Log2Histogram();
+
+    private Metrics() {
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    public static void connectionOpened() { connectionsOpened.increment(); }
+    public static void connectionClosed() { connectionsClosed.increment(); }
+    public static void login() { logins.increment(); }
+    public static void messageIn(MessageType type) { messagesIn[type.ordinal()].increment(); }
+    public static void bytesWritten(long bytes) { bytesWritten.add(bytes); }
+    public static void parseFailure() { parseFailures.increment(); }
+    public static void droppedFrame() { droppedFrames.increment(); }
+    public static void slowConsumerDisconnect() { slowConsumerDisconnects.increment(); }
+    public static void rateLimited(RateLimits.Scope scope) { rateLimited[scope.ordinal()].increment(); }
+    public static void rateDelayed() { rateDelayed.increment(); }
+    public static void rateLimitDisconnect() { rateLimitDisconnects.increment(); }
+    public static void pingSent() { pingsSent.increment(); }
+    public static void idleReaped() { idleReaped.increment(); }
+    public static void fileUploaded() { filesUploaded.increment(); }
+    public static void fileBytesIn(long bytes) { fileBytesIn.add(bytes); }
+    public static void fileBytesOut(long bytes) { fileBytesOut.add(bytes); }
+    public static void compressedConnection() { compressedConnections.increment(); }
+    public static void sharedCompressedFrame() { sharedCompressedFrames.increment(); }
+
+    // One Deflate call: bytes before and after, and the CPU time it took
+    public static void compressed(long plainBytes, long deflatedBytes, long nanos) {
+        compressBytesIn.add(plainBytes);
+        compressBytesOut.add(deflatedBytes);
+        compressNanos.add(nanos);
+    }
+
+    public static void tlsHandshake(boolean resumed) {
+        tlsHandshakes.increment();
+        if (resumed) {
+            tlsResumed.increment();
+        }
+    }
+
+    public static void tlsFailure() { tlsFailures.increment(); }
+    public static void authVerified(boolean ok, long nanos) {
+        (ok ? authSuccesses : authFailures).increment();
+        authNanos.record(nanos);
+    }
+
+    public static void authTokenLogin() { authTokenLogins.increment(); }
+    public static void authBusy() { authBusy.increment(); }
+    public static void sessionResumed(int replayed, boolean gap) {
+        sessionResumes.increment();
+        sessionReplayedFrames.add(replayed);
+        if (gap) {
+            sessionReplayGaps.increment();
+        }
+    }
+    public static void sessionExpired() { sessionsExpired.increment(); }
+    public static void searchIndexed() { searchIndexed.increment(); }
+    public static void searchSegmentWritten() { searchSegmentsWritten.increment(); }
+    public static void searchMerged() { searchMerges.increment(); }
+    public static void search(long nanos) { searchNanos.record(nanos); }
+    public static void clusterFramesOut(int frames) { clusterFramesOut.add(frames); }
+    public static void clusterFrameIn() { clusterFramesIn.increment(); }
+    public static void clusterFrameDropped() { clusterFramesDropped.increment(); }
+    public static void clusterAuthFailure() { clusterAuthFailures.increment(); }
+
+    // type == null means a server notice
+    public static void messagesOut(MessageType type, int recipients) {
+        messagesOut[type == null ? TYPES.length : type.ordinal()].add(recipients);
+    }
+
+    public static void broadcast(int recipients, long nanos) {
+        fanOut.record(recipients);
+        broadcastNanos.record(nanos);
+    }
+
+    public static long getConnectionsOpened() { return connectionsOpened.sum(); }
+    public static long getConnectionsClosed() { return connectionsClosed.sum(); }
+    public static long getLogins() { return logins.sum(); }
+    public static long getMessagesIn(MessageType type) { return messagesIn[type.ordinal()].sum(); }
+    public static long getMessagesOut(MessageType type) { return messagesOut[type.ordinal()].sum(); }
+    public static long getNoticesOut() { return messagesOut[TYPES.length].sum(); }
+    public static long getBytesWritten() { return bytesWritten.sum(); }
+    public static long getParseFailures() { return parseFailures.sum(); }
+    public static long getDroppedFrames() { return droppedFrames.sum(); }
+    public static long getSlowConsumerDisconnects() { return slowConsumerDisconnects.sum(); }
+    public static long getRateLimited(RateLimits.Scope scope) { return rateLimited[scope.ordinal()].sum(); }
+    public static long getRateDelayed() { return rateDelayed.sum(); }
+    public static long getRateLimitDisconnects() { return rateLimitDisconnects.sum(); }
+    public static long getPingsSent() { return pingsSent.sum(); }
+    public static long getIdleReaped() { return idleReaped.sum(); }
+    public static long getFilesUploaded() { return filesUploaded.sum(); }
+    public static long getFileBytesIn() { return fileBytesIn.sum(); }
+    public static long getFileBytesOut() { return fileBytesOut.sum(); }
+    public static long getCompressedConnections() { return compressedConnections.sum(); }
+    public static long getCompressBytesIn() { return compressBytesIn.sum(); }
+    public static long getCompressBytesOut() { return compressBytesOut.sum(); }
+    public static long getCompressNanos() { return compressNanos.sum(); }
+    public static long getSharedCompressedFrames() { return sharedCompressedFrames.sum(); }
+    public static long getTlsHandshakes() { return tlsHandshakes.sum(); }
+    public static long getTlsResumed() { return tlsResumed.sum(); }
+    public static long getTlsFailures() { return tlsFailures.sum(); }
+    public static long getAuthSuccesses() { return authSuccesses.sum(); }
+    public static long getAuthFailures() { return authFailures.sum(); }
+    public static long getAuthTokenLogins() { return authTokenLogins.sum(); }
+    public static long getAuthBusy() { return authBusy.sum(); }
+    public static Log2Histogram getAuthNanos() { return authNanos; }
+    public static long getSearchIndexed() { return searchIndexed.sum(); }
+    public static long getSearchSegmentsWritten() { return searchSegmentsWritten.sum(); }
+    public static long getSearchMerges() { return searchMerges.sum(); }
+    public static long getSessionResumes() { return sessionResumes.sum(); }
+    public static long getSessionReplayedFrames() { return sessionReplayedFrames.sum(); }
+    public static long getSessionReplayGaps() { return sessionReplayGaps.sum(); }
+    public static long getSessionsExpired() { return sessionsExpired.sum(); }
+    public static long getClusterFramesOut() { return clusterFramesOut.sum(); }
+    public static long getClusterFramesIn() { return clusterFramesIn.sum(); }
+    public static long getClusterFramesDropped() { return clusterFramesDropped.sum(); }
+    public static long getClusterAuthFailures() { return clusterAuthFailures.sum(); }
+    public static Log2Histogram getFanOut() { return fanOut; }
+    public static Log2Histogram getBroadcastNanos() { return broadcastNanos; }
+
+    public static long getMessagesInTotal() {
+        long total = 0;
+        for (LongAdder adder : messagesIn) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    public static long getMessagesOutTotal() {
+        long total = 0;
+        for (LongAdder adder : messagesOut) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    // Plain "name value" lines, used by /stats and the scrape endpoint
+    public static String render(Server server) {
+        StringBuilder out = new StringBuilder(2048);
+        line(out, "chat_clients_connected", server.getClientCount());
+        line(out, "chat_connections_opened_total", getConnectionsOpened());
+        line(out, "chat_connections_closed_total", getConnectionsClosed());
+        line(out, "chat_logins_total", getLogins());
+        for (MessageType type : TYPES) {
+            line(out, "chat_messages_in_total{type=\"" + type + "\"}", getMessagesIn(type));
+        }
+        for (MessageType type : TYPES) {
+            line(out, "chat_messages_out_total{type=\"" + type + "\"}", getMessagesOut(type));
+        }
+        line(out, "chat_messages_out_total{type=\"NOTICE\"}", getNoticesOut());
+        line(out, "chat_bytes_written_total", getBytesWritten());
+        line(out, "chat_parse_failures_total", getParseFailures());
+        line(out, "chat_outbound_dropped_frames_total", getDroppedFrames());
+        line(out, "chat_slow_consumer_disconnects_total", getSlowConsumerDisconnects());
+        line(out, "chat_outbound_queue_depth_total", server.getOutboundQueueDepth(false));
+        line(out, "chat_outbound_queue_depth_max", server.getOutboundQueueDepth(true));
+        line(out, "chat_rooms", server.getRoomManager().getRoomCount());
+        line(out, "chat_room_recent_frames", server.getRoomManager().getRecentFrames());
+        line(out, "chat_room_recent_bytes", server.getRoomManager().getRecentBytes());
+        for (RateLimits.Scope scope : RateLimits.Scope.values()) {
+            line(out, "chat_rate_limited_total{scope=\"" + scope + "\"}", getRateLimited(scope));
+        }
+        line(out, "chat_rate_delayed_total", getRateDelayed());
+        line(out, "chat_rate_limit_disconnects_total", getRateLimitDisconnects());
+        line(out, "chat_pings_sent_total", getPingsSent());
+        line(out, "chat_idle_reaped_total", getIdleReaped());
+        line(out, "chat_files_uploaded_total", getFilesUploaded());
+        line(out, "chat_file_bytes_in_total", getFileBytesIn());
+        line(out, "chat_file_bytes_out_total", getFileBytesOut());
+        // Bandwidth saved = bytes_in - bytes_out, paid for with compress_nanos of CPU
+        line(out, "chat_compressed_connections_total", getCompressedConnections());
+        line(out, "chat_compress_bytes_in_total", getCompressBytesIn());
+        line(out, "chat_compress_bytes_out_total", getCompressBytesOut());
+        line(out, "chat_compress_nanos_total", getCompressNanos());
+        line(out, "chat_compress_shared_frames_total", getSharedCompressedFrames());
+        if (server.getTlsContext() != null) {
+            line(out, "chat_tls_handshakes_total{resumed=\"false\"}", getTlsHandshakes() - getTlsResumed());
+            line(out, "chat_tls_handshakes_total{resumed=\"true\"}", getTlsResumed());
+            line(out, "chat_tls_failures_total", getTlsFailures());
+        }
+        Authenticator authenticator = server.getAuthenticator();
+        if (authenticator != null) {
+            line(out, "chat_auth_password_logins_total{result=\"ok\"}", getAuthSuccesses());
+            line(out, "chat_auth_password_logins_total{result=\"failed\"}", getAuthFailures());
+            line(out, "chat_auth_token_logins_total", getAuthTokenLogins());
+            line(out, "chat_auth_rejected_busy_total", getAuthBusy());
+            line(out, "chat_auth_queued_checks", authenticator.getQueuedChecks());
+            histogram(out, "chat_auth_verify_nanos", authNanos);
+        }
+        if (SearchIndex.ENABLED && server.getRoomManager().hasHistory()) {
+            line(out, "chat_search_indexed_messages_total", getSearchIndexed());
+            line(out, "chat_search_segments", server.getRoomManager().getSearchSegments(false));
+            line(out, "chat_search_segment_bytes", server.getRoomManager().getSearchSegments(true));
+            line(out, "chat_search_segments_written_total", getSearchSegmentsWritten());
+            line(out, "chat_search_merges_total", getSearchMerges());
+            histogram(out, "chat_search_nanos", searchNanos);
+        }
+        if (SessionManager.ENABLED) {
+            line(out, "chat_sessions", server.getSessions().size());
+            line(out, "chat_sessions_detached", server.getSessions().getDetached());
+            line(out, "chat_session_resumes_total", getSessionResumes());
+            line(out, "chat_session_replayed_frames_total", getSessionReplayedFrames());
+            line(out, "chat_session_replay_gaps_total", getSessionReplayGaps());
+            line(out, "chat_sessions_expired_total", getSessionsExpired());
+        }
+        ClusterNode cluster = server.getCluster();
+        if (cluster != null) {
+            line(out, "chat_cluster_peers_connected", cluster.getConnectedPeers());
+            line(out, "chat_cluster_remote_users", cluster.getRemoteUsers());
+            line(out, "chat_cluster_queued_frames", cluster.getQueuedFrames());
+            line(out, "chat_cluster_frames_out_total", getClusterFramesOut());
+            line(out, "chat_cluster_frames_in_total", getClusterFramesIn());
+            line(out, "chat_cluster_frames_dropped_total", getClusterFramesDropped());
+            line(out, "chat_cluster_auth_failures_total", getClusterAuthFailures());
+        }
+        histogram(out, "chat_room_fanout", fanOut);
+        histogram(out, "chat_broadcast_nanos", broadcastNanos);
+        line(out, "chat_log_dropped_total", ChatLog.getDropped());
+        return out.toString();
+    }
+
+    private static void histogram(StringBuilder out, String name, Log2Histogram histogram) {
+        line(out, name + "_count", histogram.getCount());
+        line(out, name + "_mean", (long) histogram.getMean());
+        line(out, name + "{quantile=\"0.5\"}", histogram.getPercentile(50));
+        line(out, name + "{quantile=\"0.99\"}", histogram.getPercentile(99));
+        line(out, name + "{quantile=\"0.999\"}", histogram.getPercentile(99.9));
+    }
+
+    private static void line(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,37 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+// Plain-text scrape endpoint: GET http://127.0.0.1:<port>/metrics
+// Bound to loopback only, it is meant for a local agent, not the outside world.
+public class MetricsEndpoint {
+    private final HttpServer httpServer;
+
+    public MetricsEndpoint(Server server, int port) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/metrics", exchange -> {
+            byte[] body = Metrics.render(server).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+    }
+
+    public void start() {
+        httpServer.start();
+        ChatLog.info("Metrics available on http://" + httpServer.getAddress().getHostString()
+                + ":" + httpServer.getAddress().getPort() + "/metrics");
+    }
+
+    public void stop() {
+        httpServer.stop(0);
+    }
+}
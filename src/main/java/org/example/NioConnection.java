@@ -0,0 +1,333 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.net.ssl.SSLContext;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Non-blocking transport owned by a single NioEventLoop.
+// sendFrame may be called from any thread; everything else runs on the loop thread.
+public class NioConnection implements Connection {
+    // Stop reading from a client whose own output is piling up, resume when it drains
+    static final long READ_PAUSE_BYTES = 256 * 1024;
+    static final long READ_RESUME_BYTES = 64 * 1024;
+    private static final int MAX_BATCH = 256;
+
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private final String remoteAddress;
+    private final int remotePort;
+    private final OutboundQueue queue = new OutboundQueue();
+    // Frames taken off the queue but not fully written yet (loop thread only)
+    private final ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<>();
+    private final List<ByteBuffer> batch = new ArrayList<>(MAX_BATCH);
+    private ByteBuffer[] gather = new ByteBuffer[MAX_BATCH];
+    private long inFlightBytes = 0;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private boolean closing = false;  // close once everything pending is written (loop thread only)
+    private final TlsEngine tls;  // null for plain TCP
+    private SelectionKey key;
+    private ClientHandler handler;
+
+    public NioConnection(SocketChannel channel, NioEventLoop loop) throws IOException {
+        this(channel, loop, null);
+    }
+
+    public NioConnection(SocketChannel channel, NioEventLoop loop, SSLContext tlsContext) throws IOException {
+        this.channel = channel;
+        this.loop = loop;
+        this.remoteAddress = String.valueOf(channel.socket().getInetAddress());
+        this.remotePort = channel.socket().getPort();
+        this.tls = tlsContext != null ? new TlsEngine(tlsContext, () -> loop.execute(this::onTasksDone)) : null;
+    }
+
+    void attach(SelectionKey key, ClientHandler handler) {
+        this.key = key;
+        this.handler = handler;
+    }
+
+    @Override
+    public void sendFrame(ByteBuffer frame) {
+        if (closed.get()) {
+            return;
+        }
+        if (!queue.offer(frame.duplicate())) {
+            ChatLog.error("Client " + remoteAddress + ":" + remotePort + " is too slow, disconnecting");
+            Metrics.slowConsumerDisconnect();
+            loop.execute(this::closeNow);
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flushOrClose);
+        }
+    }
+
+    @Override
+    public void sendFrames(List<ByteBuffer> frames) {
+        if (closed.get()) {
+            return;
+        }
+        List<ByteBuffer> views = new ArrayList<>(frames.size());
+        for (ByteBuffer frame : frames) {
+            views.add(frame.duplicate());
+        }
+        if (!queue.offerAll(views)) {
+            ChatLog.error("Client " + remoteAddress + ":" + remotePort + " is too slow, disconnecting");
+            Metrics.slowConsumerDisconnect();
+            loop.execute(this::closeNow);
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flushOrClose);
+        }
+    }
+
+    @Override
+    public void sendShared(SharedFrame frame) {
+        if (closed.get()) {
+            return;
+        }
+        if (!queue.offerShared(frame)) {
+            ChatLog.error("Client " + remoteAddress + ":" + remotePort + " is too slow, disconnecting");
+            Metrics.slowConsumerDisconnect();
+            loop.execute(this::closeNow);
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flushOrClose);
+        }
+    }
+
+    @Override
+    public void sendAllShared(List<SharedFrame> frames) {
+        if (closed.get()) {
+            return;
+        }
+        if (!queue.offerAllShared(frames)) {
+            ChatLog.error("Client " + remoteAddress + ":" + remotePort + " is too slow, disconnecting");
+            Metrics.slowConsumerDisconnect();
+            loop.execute(this::closeNow);
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flushOrClose);
+        }
+    }
+
+    @Override
+    public void startBinary(ByteBuffer reply) {
+        queue.startBinary(reply.duplicate());
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flushOrClose);
+        }
+    }
+
+    @Override
+    public boolean startCompression(ByteBuffer reply) {
+        queue.startCompression(reply.duplicate());
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flushOrClose);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean canBlock() {
+        return false;
+    }
+
+    @Override
+    public int getRemotePort() {
+        return remotePort;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public void disconnectOnOverflow() {
+        queue.disconnectOnOverflow();
+    }
+
+    public OutboundQueue getQueue() {
+        return queue;
+    }
+
+    @Override
+    public int getQueuedFrames() {
+        return queue.size();
+    }
+
+    // Graceful: write what is already queued, then close. If the socket is full the rest
+    // goes out on OP_WRITE and flush() closes once it is done; a client that stops reading
+    // altogether is left to the idle timeout or abort().
+    @Override
+    public void close() {
+        if (!closed.get()) {
+            loop.execute(() -> {
+                closing = true;
+                flushOrClose();
+            });
+        }
+    }
+
+    // Immediate: nothing more is written
+    @Override
+    public void abort() {
+        if (!closed.get()) {
+            loop.execute(this::closeNow);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    // Called by the loop when the channel is readable
+    void onReadable(ByteBuffer readBuffer) throws IOException {
+        if (tls != null) {
+            ByteBuffer plain = tls.read(channel);
+            if (plain == null) {
+                closeNow();
+                return;
+            }
+            if (plain.hasRemaining()) {
+                handler.onBytes(plain);
+            }
+            // Handshake replies, and whatever was queued while the handshake was going on
+            flush();
+            return;
+        }
+        readBuffer.clear();
+        int read = channel.read(readBuffer);
+        if (read == -1) {
+            closeNow();
+            return;
+        }
+        readBuffer.flip();
+        handler.onBytes(readBuffer);
+    }
+
+    // The TLS handshake's delegated tasks finished on their pool; continue where read or
+    // flush stopped and read again
+    private void onTasksDone() {
+        if (closed.get()) {
+            return;
+        }
+        try {
+            ByteBuffer plain = tls.tasksDone();
+            if (plain == null) {
+                closeNow();
+                return;
+            }
+            if (plain.hasRemaining()) {
+                handler.onBytes(plain);
+            }
+            flush();
+        } catch (IOException e) {
+            closeNow();
+        } catch (RuntimeException e) {
+            Metrics.parseFailure();
+            ChatLog.error("Protocol error from " + remoteAddress + ": " + e);
+            closeNow();
+        }
+    }
+
+    private void flushOrClose() {
+        try {
+            flush();
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    // Gathering write of everything pending; whatever the socket does not accept waits for OP_WRITE
+    void flush() throws IOException {
+        if (closed.get()) {
+            return;
+        }
+        flushScheduled.set(false);
+        while (true) {
+            queue.drainTo(batch, MAX_BATCH - inFlight.size());
+            for (ByteBuffer frame : batch) {
+                inFlight.addLast(frame);
+                inFlightBytes += frame.remaining();
+            }
+            batch.clear();
+            if (inFlight.isEmpty() && (tls == null || !tls.hasPendingOutput())) {
+                break;
+            }
+
+            gather = inFlight.toArray(gather);
+            // TLS: the whole batch goes into one wrap call, so records are as large as possible
+            long written = tls != null
+                    ? tls.write(channel, gather, inFlight.size())
+                    : channel.write(gather, 0, inFlight.size());
+            inFlightBytes -= written;
+            Metrics.bytesWritten(written);
+            while (!inFlight.isEmpty() && !inFlight.peekFirst().hasRemaining()) {
+                inFlight.pollFirst();
+            }
+            if (!inFlight.isEmpty() || (tls != null && tls.hasPendingOutput())) {
+                break;  // socket buffer full, or TLS still handshaking
+            }
+        }
+        if (closing && inFlight.isEmpty() && (tls == null || !tls.hasPendingOutput())) {
+            closeNow();
+            return;
+        }
+        updateInterest();
+    }
+
+    private void updateInterest() {
+        if (!key.isValid()) {
+            return;
+        }
+        int ops = key.interestOps();
+        // With TLS, frames wait in inFlight during the handshake; only unsent records need OP_WRITE
+        boolean blocked = tls != null ? tls.hasUnsentRecords() : !inFlight.isEmpty();
+        ops = blocked ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE;
+
+        long pending = inFlightBytes + queue.getQueuedBytes();
+        if (pending > READ_PAUSE_BYTES) {
+            ops &= ~SelectionKey.OP_READ;
+        } else if (pending < READ_RESUME_BYTES) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (tls != null && tls.isRunningTasks()) {
+            ops &= ~(SelectionKey.OP_READ | SelectionKey.OP_WRITE);  // onTasksDone re-arms
+        }
+        key.interestOps(ops);
+    }
+
+    void closeNow() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        if (tls != null) {
+            tls.close(channel);
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ChatLog.error("I/O error while closing channel: " + e.getMessage());
+        }
+        queue.close();
+        inFlight.clear();
+        if (handler != null) {
+            handler.onDisconnected();
+        }
+    }
+}
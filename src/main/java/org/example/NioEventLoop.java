@@ -0,0 +1,104 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// One selector thread serving many connections
+public class NioEventLoop implements Runnable {
+    private final Server server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Shared by all connections on this loop, only touched from the loop thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+
+    public NioEventLoop(Server server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    // Hand a freshly accepted channel over to this loop
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                NioConnection connection = new NioConnection(channel, this, server.getTlsContext());
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                ClientHandler handler = new ClientHandler(connection, server);
+                connection.attach(key, handler);
+                handler.onConnected();
+            } catch (IOException e) {
+                ChatLog.error("Failed to register channel: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // already broken
+                }
+            }
+        });
+    }
+
+    // Run a task on the loop thread
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // loop stopped
+        } catch (IOException e) {
+            ChatLog.error("Event loop failed: " + e.getMessage());
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        NioConnection connection = (NioConnection) key.attachment();
+        try {
+            if (key.isValid() && key.isReadable()) {
+                connection.onReadable(readBuffer);
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+        } catch (IOException e) {
+            connection.closeNow();
+        } catch (RuntimeException e) {
+            // Anything a single connection's input can throw costs that connection, never the
+            // loop thread serving all the others
+            Metrics.parseFailure();
+            ChatLog.error("Protocol error from " + connection.getRemoteAddress() + ": " + e);
+            connection.closeNow();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                ChatLog.error("Event loop task failed: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// Non-blocking server mode: a blocking acceptor hands channels round-robin
+// to a small, fixed pool of selector threads
+public class NioServer {
+    private final Server server;
+    private final int port;
+    private final NioEventLoop[] loops;
+
+    public NioServer(Server server, int port, int loopCount) throws IOException {
+        this.server = server;
+        this.port = port;
+        this.loops = new NioEventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new NioEventLoop(server);
+        }
+    }
+
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread loopThread = new Thread(loops[i], "nio-loop-" + i);
+            loopThread.setDaemon(true);
+            loopThread.start();
+        }
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        server.addListener(serverChannel);
+        ChatLog.info("Chat Server (NIO, " + loops.length + " event loops) listening on port " + port);
+
+        int next = 0;
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                if (server.isShuttingDown()) {
+                    return;
+                }
+                throw e;
+            }
+            ChatLog.info("New client connected: " + channel.socket().getInetAddress());
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded per-client queue of encoded frames waiting to be written.
+// Broadcasters only enqueue, so a slow reader never stalls the sender's thread;
+// a writer drains everything pending and writes it as one batch.
+//
+// With compression the queue still holds plain frames. The writer deflates each drained
+// batch as one block with one SYNC_FLUSH, on its own thread and outside the lock, so the
+// cost stays off the broadcast and shrinks as batches grow.
+public class OutboundQueue {
+
+    // What to do when a client falls more than `capacity` frames behind
+    public enum OverflowPolicy {
+        DROP_OLDEST,   // throw away the oldest queued frame to make room (never with a Session)
+        DISCONNECT     // give up on the client
+    }
+
+    // Configurable with -Dchat.outbound.capacity=... and -Dchat.outbound.policy=DROP_OLDEST|DISCONNECT
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+    public static final OverflowPolicy DEFAULT_POLICY =
+            OverflowPolicy.valueOf(System.getProperty("chat.outbound.policy", "DISCONNECT"));
+
+    private final int capacity;
+    private OverflowPolicy policy;  // guarded by lock
+    // ByteBuffers go out as they are; once compressing, Deflate and Spliced entries
+    private final ArrayDeque<Object> frames = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private long queuedBytes = 0;
+    private long droppedFrames = 0;
+    private boolean closed = false;
+    private StreamCompressor compressor;  // set once the client negotiated compression
+    private boolean binary = false;       // SharedFrames in binary format from startBinary on
+
+    // A plain frame the writer compresses with the rest of its batch
+    private record Deflate(ByteBuffer frame) {
+    }
+
+    // A broadcast's shared block from SharedFrame.deflated, spliced into the stream as it is
+    private record Spliced(ByteBuffer block) {
+    }
+
+    public OutboundQueue() {
+        this(DEFAULT_CAPACITY, DEFAULT_POLICY);
+    }
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    // Returns false when the overflow policy says the client must be disconnected
+    public boolean offer(ByteBuffer frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (!addLocked(plainLocked(frame))) {
+                return false;
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A broadcast frame: on a compressed stream, a room big enough shares one compressed block
+    // between all its members (see StreamCompressor); otherwise the same as offer.
+    // The wire format is the queue's own, so a frame can never land on the wrong side of /binary.
+    public boolean offerShared(SharedFrame frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            Object entry = compressor != null && StreamCompressor.shares(frame)
+                    ? new Spliced(frame.deflated(binary).duplicate())
+                    : plainLocked(encodeLocked(frame).duplicate());
+            if (!addLocked(entry)) {
+                return false;
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Several SharedFrames as one batch, like offerAll
+    public boolean offerAllShared(List<SharedFrame> batch) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            List<ByteBuffer> encoded = new ArrayList<>(batch.size());
+            for (SharedFrame frame : batch) {
+                encoded.add(encodeLocked(frame).duplicate());
+            }
+            return offerAllLocked(encoded);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ByteBuffer encodeLocked(SharedFrame frame) {
+        return binary ? frame.binary() : frame.text();
+    }
+
+    // A plain frame as it is queued: marked for the writer's Deflate once compressing
+    private Object plainLocked(ByteBuffer frame) {
+        return compressor != null ? new Deflate(frame) : frame;
+    }
+
+    // Queue `reply` as the last text frame; SharedFrames after it are binary. One step under
+    // the lock, like startCompression, so a broadcast queued concurrently is on one side or the other.
+    public void startBinary(ByteBuffer reply) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            addLocked(plainLocked(reply));
+            binary = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Queue `reply` as the last plain frame and compress everything after it. Frames can no
+    // longer be dropped from then on: a gap would corrupt the stream, so overflow disconnects.
+    public void startCompression(ByteBuffer reply) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            addLocked(plainLocked(reply));
+            if (compressor == null) {
+                compressor = new StreamCompressor();
+                policy = OverflowPolicy.DISCONNECT;
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Overflow disconnects from now on, whatever the configured policy: the client counts
+    // every frame for a session resume (Session), so a silently dropped one would shift the replay
+    public void disconnectOnOverflow() {
+        lock.lock();
+        try {
+            policy = OverflowPolicy.DISCONNECT;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Queue several frames as one step, so the writer picks them all up in a single batch
+    public boolean offerAll(List<ByteBuffer> batch) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            return offerAllLocked(batch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean offerAllLocked(List<ByteBuffer> batch) {
+        for (ByteBuffer frame : batch) {
+            if (!addLocked(plainLocked(frame))) {
+                return false;
+            }
+        }
+        notEmpty.signal();
+        return true;
+    }
+
+    private boolean addLocked(Object entry) {
+        if (frames.size() >= capacity) {
+            if (policy == OverflowPolicy.DISCONNECT) {
+                return false;
+            }
+            Object oldest = frames.pollFirst();
+            queuedBytes -= bytes(oldest);
+            droppedFrames++;
+            Metrics.droppedFrame();
+        }
+        frames.addLast(entry);
+        queuedBytes += bytes(entry);
+        return true;
+    }
+
+    private static int bytes(Object entry) {
+        if (entry instanceof Deflate deflate) {
+            return deflate.frame().remaining();
+        }
+        if (entry instanceof Spliced spliced) {
+            return spliced.block().remaining();
+        }
+        return ((ByteBuffer) entry).remaining();
+    }
+
+    // Move up to max entries into batch without waiting; returns the frames added, fewer
+    // than the entries taken when a run of them was compressed into one block
+    public int drainTo(List<ByteBuffer> batch, int max) {
+        List<Object> drained = new ArrayList<>();
+        StreamCompressor deflating;
+        lock.lock();
+        try {
+            drainLocked(drained, max);
+            deflating = compressor;
+        } finally {
+            lock.unlock();
+        }
+        return encode(drained, deflating, batch);
+    }
+
+    // Wait until something is queued (or the queue is closed), then drain up to max entries.
+    // Returns 0 only when the queue is closed and empty.
+    public int awaitAndDrain(List<ByteBuffer> batch, int max) throws InterruptedException {
+        List<Object> drained = new ArrayList<>();
+        StreamCompressor deflating;
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            drainLocked(drained, max);
+            deflating = compressor;
+        } finally {
+            lock.unlock();
+        }
+        int added = encode(drained, deflating, batch);
+        return added > 0 || drained.isEmpty() ? added : awaitAndDrain(batch, max);
+    }
+
+    private void drainLocked(List<Object> drained, int max) {
+        Object entry;
+        while (drained.size() < max && (entry = frames.pollFirst()) != null) {
+            queuedBytes -= bytes(entry);
+            drained.add(entry);
+        }
+    }
+
+    // Writer side, outside the lock: each run of plain frames becomes one compressed block
+    // with one SYNC_FLUSH. Only the connection's single writer drains, so the stream order
+    // is the queue order.
+    private static int encode(List<Object> drained, StreamCompressor deflating, List<ByteBuffer> batch) {
+        int before = batch.size();
+        List<ByteBuffer> run = new ArrayList<>();
+        for (Object entry : drained) {
+            if (entry instanceof Deflate deflate) {
+                run.add(deflate.frame());
+                continue;
+            }
+            deflateRun(run, deflating, batch);
+            if (entry instanceof Spliced spliced) {
+                deflating.spliced();
+                batch.add(spliced.block());
+            } else {
+                batch.add((ByteBuffer) entry);
+            }
+        }
+        deflateRun(run, deflating, batch);
+        return batch.size() - before;
+    }
+
+    private static void deflateRun(List<ByteBuffer> run, StreamCompressor deflating, List<ByteBuffer> batch) {
+        if (!run.isEmpty()) {
+            ByteBuffer block = deflating.compress(run);
+            if (block != null) {  // null once the connection closed
+                batch.add(block);
+            }
+            run.clear();
+        }
+    }
+
+    public void close() {
+        StreamCompressor deflating;
+        lock.lock();
+        try {
+            closed = true;
+            deflating = compressor;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (deflating != null) {
+            deflating.end();  // nothing more is written; a writer still compressing gets null
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getQueuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedFrames() {
+        lock.lock();
+        try {
+            return droppedFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Outgoing link to one peer node. Senders only enqueue; a virtual thread (re)connects,
+// and writes everything pending as one batch, like SocketConnection does for clients.
+// Frames only travel from this node to the peer; the peer has its own link back.
+public class PeerLink {
+    private static final int MAX_BATCH = 512;
+    private static final int QUEUE_CAPACITY = Integer.getInteger("chat.cluster.queue", 65536);
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+
+    private final ClusterNode node;
+    private final String host;
+    private final int port;
+    // A peer that is down must not back up into the rooms, so the oldest frames go first
+    private final OutboundQueue queue = new OutboundQueue(QUEUE_CAPACITY, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+    private volatile String remoteNodeId;
+    private volatile boolean connected = false;
+
+    public PeerLink(ClusterNode node, String host, int port) {
+        this.node = node;
+        this.host = host;
+        this.port = port;
+    }
+
+    public void start() {
+        Thread.ofVirtual().name("peer-" + host + ":" + port).start(this::run);
+    }
+
+    public void send(ByteBuffer frame) {
+        queue.offer(frame.duplicate());
+    }
+
+    public String getAddress() {
+        return host + ":" + port;
+    }
+
+    // Node id the peer announced, null until the first handshake
+    public String getRemoteNodeId() {
+        return remoteNodeId;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public int getQueuedFrames() {
+        return queue.size();
+    }
+
+    private void run() {
+        long backoff = 100;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), 2000);
+                socket.setTcpNoDelay(true);
+                OutputStream output = socket.getOutputStream();
+                handshake(socket, output);
+                connected = true;
+                backoff = 100;
+                ChatLog.info("Cluster link to " + remoteNodeId + " (" + getAddress() + ") is up");
+                writeLoop(output);
+                return;  // queue closed
+            } catch (IOException e) {
+                if (connected) {
+                    ChatLog.warn("Cluster link to " + getAddress() + " lost: " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                connected = false;
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    // HELLO both ways with nonces, each side proving the shared secret (see ClusterNode), then
+    // our current users and created rooms, so the peer is up to date before any queued traffic
+    private void handshake(Socket socket, OutputStream output) throws IOException {
+        String nonce = node.newNonce();
+        write(output, ClusterCodec.encode(ClusterCodec.HELLO, node.getNodeId(), nonce));
+        output.flush();
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        ClusterCodec.Frame reply = ClusterCodec.read(input);
+        if (reply.kind() != ClusterCodec.HELLO || reply.fields().length != 3) {
+            throw new IOException("Expected HELLO from " + getAddress());
+        }
+        String peerId = reply.fields()[0];
+        String peerNonce = reply.fields()[1];
+        if (!ClusterNode.verify(reply.fields()[2], node.proof("accept", nonce, peerNonce, peerId))) {
+            Metrics.clusterAuthFailure();
+            ChatLog.warn("Cluster peer " + getAddress() + " failed authentication, check --cluster-secret");
+            throw new IOException("Cluster peer failed authentication");
+        }
+        socket.setSoTimeout(0);
+        write(output, ClusterCodec.encode(ClusterCodec.AUTH, node.proof("connect", peerNonce, nonce, node.getNodeId())));
+        remoteNodeId = peerId;
+        node.linkUp(this);
+        for (String username : node.localUsernames()) {
+            write(output, ClusterCodec.encode(ClusterCodec.USER_ONLINE, username));
+        }
+        for (Room room : node.createdRooms()) {
+            write(output, ClusterCodec.encode(ClusterCodec.ROOM_CREATED, room.getRoomName(),
+                    Integer.toString(room.getMaxCapacity())));
+        }
+        output.flush();
+    }
+
+    private static void write(OutputStream output, ByteBuffer frame) throws IOException {
+        ByteBuffer view = frame.duplicate();
+        byte[] bytes = new byte[view.remaining()];
+        view.get(bytes);
+        output.write(bytes);
+    }
+
+    private void writeLoop(OutputStream output) throws IOException, InterruptedException {
+        List<ByteBuffer> batch = new ArrayList<>(MAX_BATCH);
+        byte[] scratch = new byte[16 * 1024];
+        while (queue.awaitAndDrain(batch, MAX_BATCH) > 0) {
+            int length = 0;
+            for (ByteBuffer frame : batch) {
+                length += frame.remaining();
+            }
+            if (length > scratch.length) {
+                scratch = Arrays.copyOf(scratch, Integer.highestOneBit(length) << 1);
+            }
+            int position = 0;
+            for (ByteBuffer frame : batch) {
+                int remaining = frame.remaining();
+                frame.get(scratch, position, remaining);
+                position += remaining;
+            }
+            Metrics.clusterFramesOut(batch.size());
+            batch.clear();
+
+            output.write(scratch, 0, length);
+            output.flush();
+        }
+    }
+
+    public void close() {
+        queue.close();
+    }
+}
@@ -0,0 +1,69 @@
+package org.example;
+
+// Flood protection settings. Every limit is a TokenBucket: rate per second plus a burst.
+//
+//   -Dchat.rate.enabled=false                 turn all limits off
+//   -Dchat.rate.client=50 / .client.burst=100 lines per second from one client (commands included)
+//   -Dchat.rate.room=1000 / .room.burst=2000  messages per second into one room, from all members
+//   -Dchat.rate.<TYPE>=N / .<TYPE>.burst=M    per client and MessageType, e.g. chat.rate.FILE_TRANSFER=2
+//   -Dchat.rate.createRoom=5 / .burst=20      rooms per second made with /create, all users together
+//   -Dchat.rate.policy=REJECT|DELAY|DISCONNECT
+//
+// A rate of 0 disables that limit. The buckets are created with the client or room, so
+// checking them allocates nothing.
+public final class RateLimits {
+
+    // Which limit stopped a message, for metrics and the notice to the sender
+    public enum Scope { CLIENT, ROOM, TYPE }
+
+    public enum Policy {
+        REJECT,      // drop the message and tell the sender to slow down
+        DELAY,       // hold the sender's reader until tokens are available (blocking transports only)
+        DISCONNECT   // drop the client
+    }
+
+    public static final boolean ENABLED = !"false".equals(System.getProperty("chat.rate.enabled"));
+    public static final Policy POLICY = Policy.valueOf(System.getProperty("chat.rate.policy", "REJECT"));
+    // A DELAY longer than this is treated as REJECT, so a flooding reader cannot park forever
+    public static final long MAX_DELAY_NANOS = 1_000_000_000L;
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    private RateLimits() {
+    }
+
+    private static TokenBucket bucket(String name, long defaultRate, long defaultBurst) {
+        long rate = Long.getLong("chat.rate." + name, defaultRate);
+        if (!ENABLED || rate <= 0) {
+            return null;
+        }
+        return new TokenBucket(rate, Long.getLong("chat.rate." + name + ".burst", Math.max(defaultBurst, rate)));
+    }
+
+    public static TokenBucket newClientBucket() {
+        return bucket("client", 50, 100);
+    }
+
+    public static TokenBucket newRoomBucket() {
+        return bucket("room", 1000, 2000);
+    }
+
+    // One for the whole server (RoomManager)
+    public static TokenBucket newCreateRoomBucket() {
+        return bucket("createRoom", 5, 20);
+    }
+
+    // Indexed by MessageType.ordinal(); null entries have no per-type limit
+    public static TokenBucket[] newTypeBuckets() {
+        TokenBucket[] buckets = new TokenBucket[TYPES.length];
+        for (MessageType type : TYPES) {
+            long defaultRate = switch (type) {
+                case FILE_TRANSFER -> 2;
+                case JOIN_ROOM -> 5;
+                default -> 0;
+            };
+            buckets[type.ordinal()] = bucket(type.name(), defaultRate, defaultRate * 2);
+        }
+        return buckets;
+    }
+}
@@ -0,0 +1,58 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// The last K frames broadcast in a room, kept for scrollback when someone joins.
+// The slot array is allocated once; recording a message stores the SharedFrame the
+// broadcast already built, so the hot path allocates nothing and does no I/O.
+// Memory is bounded by K frames of at most one line each.
+public class RecentFrames {
+    private final AtomicReferenceArray<SharedFrame> slots;
+    private final AtomicLong next = new AtomicLong();  // total frames ever recorded
+    private final LongAdder bytes = new LongAdder();    // encoded size of the frames currently held
+
+    public RecentFrames(int capacity) {
+        this.slots = new AtomicReferenceArray<>(Math.max(0, capacity));
+    }
+
+    public void record(SharedFrame frame) {
+        int capacity = slots.length();
+        if (capacity == 0) {
+            return;
+        }
+        long sequence = next.getAndIncrement();
+        SharedFrame evicted = slots.getAndSet((int) (sequence % capacity), frame);
+        bytes.add(frame.text().remaining() - (evicted != null ? evicted.text().remaining() : 0));
+    }
+
+    // Up to max of the most recent frames, oldest first
+    public List<SharedFrame> last(int max) {
+        int capacity = slots.length();
+        long end = next.get();
+        long start = Math.max(0, end - Math.min(capacity, max));
+        List<SharedFrame> frames = new ArrayList<>((int) (end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            SharedFrame frame = slots.get((int) (sequence % capacity));
+            if (frame != null) {
+                frames.add(frame);
+            }
+        }
+        return frames;
+    }
+
+    public int getCapacity() {
+        return slots.length();
+    }
+
+    public int size() {
+        return (int) Math.min(next.get(), slots.length());
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+}
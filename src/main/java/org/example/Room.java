@@ -1,49 +1,171 @@
 package org.example;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Room {
+    private static final ClientHandler[] NO_CLIENTS = new ClientHandler[0];
+    // Frames kept for scrollback per room: -Dchat.room.recent=K, 0 turns it off
+    public static final int DEFAULT_RECENT = Integer.getInteger("chat.room.recent", 50);
+
     private String roomName;
-    private List<ClientHandler> clients;
+    // Copy-on-write snapshot: joins/leaves swap in a new array, broadcasts just read the field
+    private volatile ClientHandler[] clients = NO_CLIENTS;
+    // Same members as a set, for O(1) containsClient
+    private final Set<ClientHandler> memberSet = ConcurrentHashMap.newKeySet();
+    // Only writers take this; it makes the capacity check and the add one atomic step
+    private final ReentrantLock membershipLock = new ReentrantLock();
     private int maxCapacity;
+    // Where the persistent message logs live, null when the server runs without --history-dir.
+    // The room's log and index are opened on its first message, so a room nobody talks in
+    // costs no files, mappings or index buffers.
+    private Path historyDir;
+    private final ReentrantLock historyLock = new ReentrantLock();
+    private boolean historyClosed = false;  // guarded by historyLock
+    // Persistent message log, null until opened
+    private volatile RoomLog history;
+    // Full-text index over that log, null without history or with -Dchat.search.enabled=false
+    private volatile SearchIndex search;
+    // Normalized name of the user who made it with /create, null for built-in and remote rooms
+    private String creator;
+    private volatile RecentFrames recent = new RecentFrames(DEFAULT_RECENT);
+    // Messages per second into this room from all members together, null = unlimited
+    private final TokenBucket rateLimit = RateLimits.newRoomBucket();
+    // Peers that also get this room's broadcasts, null when not clustered
+    private volatile ClusterNode cluster;
+    // Idle-room reclamation: built-in rooms are never removed; the others are closed
+    // once they have been empty for a while, after which nobody can join them
+    private boolean permanent = false;
+    private long emptySince = System.nanoTime();  // guarded by membershipLock
+    private boolean closed = false;               // guarded by membershipLock
 
     public Room(String roomName, int maxCapacity) {
         this.roomName = roomName;
-        this.clients = new ArrayList<>();
         this.maxCapacity = maxCapacity;
     }
 
     public boolean addClient(ClientHandler client) {
-        if (clients.size() >= maxCapacity) {
-            return false;
+        membershipLock.lock();
+        try {
+            ClientHandler[] current = clients;
+            if (closed || current.length >= maxCapacity || memberSet.contains(client)) {
+                return false;
+            }
+            ClientHandler[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = client;
+            memberSet.add(client);
+            clients = updated;
+            client.addRoom(this);
+        } finally {
+            membershipLock.unlock();
         }
 
-        if (!clients.contains(client)) {
-            clients.add(client);
-            broadcastToRoom("[" + client.getUsername() + " joined the room]", client);
+        broadcastToRoom("[" + client.getUsername() + " joined the room]", client);
+        return true;
+    }
+
+    public boolean removeClient(ClientHandler client) {
+        ClientHandler[] updated;
+        boolean announce;
+        membershipLock.lock();
+        try {
+            if (!memberSet.remove(client)) {
+                return false;
+            }
+            ClientHandler[] current = clients;
+            updated = new ClientHandler[current.length - 1];
+            int i = 0;
+            for (ClientHandler member : current) {
+                if (member != client) {
+                    updated[i++] = member;
+                }
+            }
+            clients = updated;
+            client.removeRoom(this);
+            if (updated.length == 0) {
+                emptySince = System.nanoTime();
+            }
+            // Only broadcast if there are still clients in the room (here, or maybe on another node),
+            // and not while the server shuts down, when everybody is leaving at once
+            announce = !closed && (updated.length > 0 || cluster != null);
+        } finally {
+            membershipLock.unlock();
+        }
+
+        if (announce) {
+            broadcastToRoom("[" + client.getUsername() + " left the room]", null);
+        }
+        return true;
+    }
+
+    // A resumed session's new handler takes the old one's place, without leave or join notices
+    public boolean replaceClient(ClientHandler previous, ClientHandler client) {
+        membershipLock.lock();
+        try {
+            if (!memberSet.remove(previous)) {
+                return false;
+            }
+            ClientHandler[] updated = clients.clone();
+            for (int i = 0; i < updated.length; i++) {
+                if (updated[i] == previous) {
+                    updated[i] = client;
+                }
+            }
+            memberSet.add(client);
+            clients = updated;
+            previous.removeRoom(this);
+            client.addRoom(this);
             return true;
+        } finally {
+            membershipLock.unlock();
         }
-        return false;
     }
 
-    public boolean removeClient(ClientHandler client) {
-        if (clients.remove(client)) {
-            // Only broadcast if there are still clients in the room
-            if (!clients.isEmpty()) {
-                broadcastToRoom("[" + client.getUsername() + " left the room]", null);
+    // Close the room if it is not permanent and has been empty since before cutoff (System.nanoTime)
+    boolean closeIfIdleSince(long cutoff) {
+        membershipLock.lock();
+        try {
+            if (permanent || closed || clients.length > 0 || emptySince - cutoff > 0) {
+                return false;
             }
+            closed = true;
             return true;
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    // Server shutdown: no more joins, and members leave without a notice each
+    public void close() {
+        membershipLock.lock();
+        try {
+            closed = true;
+        } finally {
+            membershipLock.unlock();
         }
-        return false;
+    }
+
+    public boolean isPermanent() {
+        return permanent;
+    }
+
+    public void setPermanent(boolean permanent) {
+        this.permanent = permanent;
     }
 
     public boolean isRoomFull() {
-        return clients.size() >= maxCapacity;
+        return clients.length >= maxCapacity;
     }
 
     public int howManyInroom() {
-        return clients.size();
+        return clients.length;
     }
 
     public int getMaxCapacity() {
@@ -59,26 +181,152 @@ public class Room {
     }
 
     public void broadcastToRoom(String message, ClientHandler sender) {
+        broadcastToRoom(message, sender, null);
+    }
+
+    // type is only used for metrics; null for server notices such as joins and leaves
+    public void broadcastToRoom(String message, ClientHandler sender, MessageType type) {
+        deliver(message, sender, type);
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) {
+            cluster.forwardRoom(roomName, message, type);
+        }
+    }
+
+    // Local members only; messages arriving from other cluster nodes come in here
+    void deliver(String message, ClientHandler sender, MessageType type) {
+        long start = System.nanoTime();
         // Log til server
-        System.out.println("Broadcasting to " + roomName + " (" + clients.size() + " clients): " + message);
+        ClientHandler[] recipients = clients;  // one volatile read, no lock, no copy
+        if (ChatLog.sampled()) {
+            ChatLog.info("Broadcasting to " + roomName + " (" + recipients.length + " clients): " + message);
+        }
 
-        for (ClientHandler clientHandler : clients) {
+        // Encode once, every recipient queues a view of the same bytes
+        SharedFrame frame = new SharedFrame(message, recipients.length);
+        int delivered = 0;
+        for (ClientHandler clientHandler : recipients) {
             if (clientHandler != sender) { // Don't send to sender
                 try {
-                    clientHandler.sendMessage(message);
+                    clientHandler.sendFrame(frame);
+                    delivered++;
                 } catch (Exception e) {
-                    System.err.println("Error while messaging");
+                    ChatLog.error("Error while messaging");
                 }
             }
         }
+        // Chat messages only; join/leave notices are not worth replaying
+        if (type != null) {
+            recent.record(frame);
+            RoomLog log = openHistory(true);
+            if (log != null) {
+                log.append(message);
+            }
+        }
+        Metrics.messagesOut(type, delivered);
+        Metrics.broadcast(delivered, System.nanoTime() - start);
     }
 
     public String getRoomName() {
         return roomName;
     }
 
+    // The log if it is open, else null; see openHistory
+    public RoomLog getHistory() {
+        return history;
+    }
+
+    // The index if the log is open and indexed, else null
+    public SearchIndex getSearch() {
+        return search;
+    }
+
+    public void setHistoryDir(Path historyDir) {
+        this.historyDir = historyDir;
+    }
+
+    public boolean keepsHistory() {
+        return historyDir != null;
+    }
+
+    // The room's log, opened (with its index) on first use. With create = false only a log
+    // that is on disk already is opened (a room created again after being reclaimed), so
+    // reading history never makes files. Null without history, or once closed.
+    public RoomLog openHistory(boolean create) {
+        RoomLog log = history;
+        if (log != null || historyDir == null) {
+            return log;
+        }
+        historyLock.lock();
+        try {
+            if (history != null || historyClosed
+                    || !create && !Files.isDirectory(historyDir.resolve(roomName))) {
+                return history;
+            }
+            RoomLog opened = RoomLog.open(historyDir, roomName);
+            if (SearchIndex.ENABLED) {
+                try {
+                    search = SearchIndex.open(opened);
+                } catch (IOException e) {
+                    ChatLog.error("No search index for room " + roomName + ": " + e.getMessage());
+                }
+            }
+            history = opened;
+            return opened;
+        } catch (IOException e) {
+            ChatLog.error("No history for room " + roomName + ": " + e.getMessage());
+            historyClosed = true;  // not again for every message
+            return null;
+        } finally {
+            historyLock.unlock();
+        }
+    }
+
+    // Close the log and index if they were opened; they are not opened again
+    public void closeHistory() {
+        historyLock.lock();
+        try {
+            historyClosed = true;
+            if (search != null) {
+                search.close();
+                search = null;
+            }
+            if (history != null) {
+                history.close();
+                history = null;
+            }
+        } finally {
+            historyLock.unlock();
+        }
+    }
+
+    String getCreator() {
+        return creator;
+    }
+
+    void setCreator(String creator) {
+        this.creator = creator;
+    }
+
+    public TokenBucket getRateLimit() {
+        return rateLimit;
+    }
+
+    public void setCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    public RecentFrames getRecent() {
+        return recent;
+    }
+
+    // Starts an empty buffer of the new size; scrollback before the change is dropped
+    public void setRecentCapacity(int capacity) {
+        this.recent = new RecentFrames(capacity);
+    }
+
     public boolean containsClient(ClientHandler client) {
-        return clients.contains(client);
+        return memberSet.contains(client);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,506 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ObjLongConsumer;
+import java.util.stream.Stream;
+
+// Append-only message history for one room, stored as memory-mapped segment files:
+//
+//   <dir>/<room>/00000000000000000000.log, 00000000000016777216.log, ...
+//
+// The file name is the segment's starting byte offset in the room's log.
+// Each record is  int length | UTF-8 line | int length  so the log can be read from
+// either end; a zero length marks the unwritten tail of a segment. When a segment is
+// finished its last 8 bytes get a footer  int SEALED | int end of the last record,
+// so readers find its end without walking every record in it.
+//
+// Appends are a copy into the mapped page cache. A shared background thread forces
+// dirty segments to disk every few milliseconds (group commit), so many messages share one fsync.
+// The fsync runs outside the lock, so appends (and the broadcast calling them) never wait for
+// the disk. The same thread maps the next segment before the active one is full and forces
+// the one that was finished, so a roll on the send path is only a swap.
+//
+// Mappings are bounded across all rooms: the active segment of a room that has been quiet
+// for IDLE_MILLIS is dropped and mapped again on the next append or read, and finished
+// segments being read share one LRU of MAPPED_SEGMENTS. A dropped mapping is unmapped by the GC.
+//
+// Reads may fault pages in from disk, so /history and /search run on a small shared pool
+// (submit), never on a connection thread or an event loop; a full queue refuses the request.
+//
+//   -Dchat.history.segmentSize=16777216  bytes per segment file
+//   -Dchat.history.flushMillis=50        group commit interval
+//   -Dchat.history.idleMillis=60000      quiet time before a room's active segment is unmapped
+//   -Dchat.history.mappedSegments=256    finished segments kept mapped, all rooms together
+//   -Dchat.history.readThreads=2         threads serving /history and /search from disk
+//   -Dchat.history.readQueue=256         reads waiting for a thread before requests are refused
+public class RoomLog {
+    static final int SEGMENT_SIZE = Integer.getInteger("chat.history.segmentSize", 16 * 1024 * 1024);
+    static final long FLUSH_MILLIS = Long.getLong("chat.history.flushMillis", 50);
+    static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.history.idleMillis", 60_000));
+    static final int MAX_RECORD = 64 * 1024;
+    static final int MAPPED_SEGMENTS = Integer.getInteger("chat.history.mappedSegments", 256);
+    static final int READ_THREADS = Integer.getInteger("chat.history.readThreads", 2);
+    static final int READ_QUEUE = Integer.getInteger("chat.history.readQueue", 256);
+    private static final int SEALED = 0x53454144;  // "SEAD", never a valid record length
+    private static final int FOOTER = 8;
+
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "room-log-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ThreadPoolExecutor readers = new ThreadPoolExecutor(READ_THREADS, READ_THREADS,
+            0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(READ_QUEUE), runnable -> {
+                Thread thread = new Thread(runnable, "room-log-reader");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // Finished segments never change again, so readers map each of them and find its end only once.
+    // Access order, so the least recently read segment of any room is dropped first.
+    private static final ReentrantLock sealedLock = new ReentrantLock();
+    private static final LinkedHashMap<SegmentKey, Segment> sealed = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SegmentKey, Segment> eldest) {
+            return size() > MAPPED_SEGMENTS;
+        }
+    };
+
+    private record SegmentKey(Path directory, long base) {
+    }
+
+    private record Segment(MappedByteBuffer buffer, int end) {
+    }
+
+    private final Path directory;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<Long> segmentBases = new ArrayList<>();  // sorted, last one is active
+    private MappedByteBuffer active;  // null while idle; activeEnd then holds its position
+    private int activeEnd;
+    private long activeBase;
+    private MappedByteBuffer next;   // the segment after the active one, mapped ahead by the flusher
+    private boolean dirty = false;
+    private boolean closed = false;
+    private long lastAppend = System.nanoTime();
+    private long appended = 0;
+    private ScheduledFuture<?> flushTask;
+
+    private RoomLog(Path directory) {
+        this.directory = directory;
+    }
+
+    public static RoomLog open(Path rootDirectory, String roomName) throws IOException {
+        RoomLog log = new RoomLog(rootDirectory.resolve(roomName));
+        log.recover();
+        log.flushTask = flusher.scheduleWithFixedDelay(log::flush, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        return log;
+    }
+
+    // Run a history read on the reader pool. Returns false, without running it, if the pool is saturated.
+    public static boolean submit(Runnable read) {
+        try {
+            readers.execute(read);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private static Path segmentPath(Path directory, long base) {
+        return directory.resolve(String.format("%020d.log", base));
+    }
+
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(".log"))
+                    .map(name -> Long.parseLong(name.substring(0, name.length() - 4)))
+                    .sorted()
+                    .forEach(segmentBases::add);
+        }
+        if (segmentBases.isEmpty()) {
+            segmentBases.add(0L);
+        }
+        activeBase = segmentBases.get(segmentBases.size() - 1);
+        active = map(activeBase, FileChannel.MapMode.READ_WRITE);
+
+        // Find the end of the written records
+        int position = 0;
+        while (position + 4 <= active.limit()) {
+            int length = active.getInt(position);
+            if (length <= 0 || length > MAX_RECORD || position + 8 + length > active.limit()
+                    || active.getInt(position + 4 + length) != length) {
+                break;  // unwritten tail, or a record torn by a crash
+            }
+            position += 8 + length;
+        }
+        active.position(position);
+    }
+
+    private MappedByteBuffer map(long base, FileChannel.MapMode mode) throws IOException {
+        Path path = segmentPath(directory, base);
+        if (mode == FileChannel.MapMode.READ_ONLY) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return channel.map(mode, 0, channel.size());
+            }
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(mode, 0, SEGMENT_SIZE);
+        }
+    }
+
+    public void append(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_RECORD) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                return;  // the room was reclaimed while this message was on its way
+            }
+            MappedByteBuffer segment = active();
+            if (segment.remaining() < bytes.length + 8 + FOOTER) {
+                segment = roll();
+            }
+            segment.putInt(bytes.length).put(bytes).putInt(bytes.length);
+            dirty = true;
+            lastAppend = System.nanoTime();
+            appended++;
+        } catch (IOException e) {
+            ChatLog.error("Could not write room history in " + directory + ": " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The active segment, mapped again if the room was idle; caller holds the lock
+    private MappedByteBuffer active() throws IOException {
+        if (closed) {
+            throw new IOException("closed");
+        }
+        if (active == null) {
+            active = map(activeBase, FileChannel.MapMode.READ_WRITE);
+            active.position(activeEnd);
+        }
+        return active;
+    }
+
+    // Caller holds the lock; the finished segment is forced by the flusher
+    private MappedByteBuffer roll() throws IOException {
+        MappedByteBuffer finished = active;
+        int end = finished.position();
+        if (end <= SEGMENT_SIZE - FOOTER) {  // else a segment from before footers, found by a scan
+            finished.putInt(SEGMENT_SIZE - FOOTER, SEALED).putInt(SEGMENT_SIZE - 4, end);
+        }
+        activeBase += SEGMENT_SIZE;
+        segmentBases.add(activeBase);
+        active = next != null ? next : map(activeBase, FileChannel.MapMode.READ_WRITE);
+        next = null;
+        flusher.execute(finished::force);
+        return active;
+    }
+
+    // Group commit: one force() covers every append since the last flush. Under the lock only
+    // the buffer is taken; the fsync itself runs while appends go on.
+    public void flush() {
+        MappedByteBuffer toForce = null;
+        boolean mapNext = false;
+        lock.lock();
+        try {
+            if (dirty) {
+                toForce = active;
+                dirty = false;
+            } else if (active != null && System.nanoTime() - lastAppend > IDLE_NANOS) {
+                activeEnd = active.position();  // forced already: quiet, so give the mappings back
+                active = null;
+                next = null;
+            }
+            mapNext = !closed && next == null && active != null && active.position() > SEGMENT_SIZE / 2;
+        } finally {
+            lock.unlock();
+        }
+        if (toForce != null) {
+            toForce.force();
+        }
+        if (mapNext) {
+            mapNext();
+        }
+    }
+
+    // Map the segment after the active one on the flusher thread, so roll() does not have to
+    private void mapNext() {
+        long base;
+        lock.lock();
+        try {
+            base = activeBase + SEGMENT_SIZE;
+        } finally {
+            lock.unlock();
+        }
+        MappedByteBuffer mapped;
+        try {
+            mapped = map(base, FileChannel.MapMode.READ_WRITE);
+        } catch (IOException e) {
+            ChatLog.error("Could not prepare room history in " + directory + ": " + e.getMessage());
+            return;
+        }
+        lock.lock();
+        try {
+            if (!closed && next == null && activeBase + SEGMENT_SIZE == base) {
+                next = mapped;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The last `count` lines, oldest first. Reads backwards through the mapped segments,
+    // so only the pages holding those records are touched.
+    public List<String> readLast(int count) {
+        List<String> result = new ArrayList<>(Math.min(count, 1024));
+        if (count <= 0) {
+            return result;
+        }
+
+        List<Long> bases;
+        MappedByteBuffer current;
+        int end;
+        lock.lock();
+        try {
+            bases = new ArrayList<>(segmentBases);
+            current = active().duplicate();
+            end = active.position();
+        } catch (IOException e) {
+            ChatLog.error("Could not read room history in " + directory + ": " + e.getMessage());
+            return result;
+        } finally {
+            lock.unlock();
+        }
+
+        for (int i = bases.size() - 1; i >= 0 && result.size() < count; i--) {
+            java.nio.ByteBuffer segment;
+            if (i == bases.size() - 1) {
+                segment = current;
+            } else {
+                Segment finished = sealed(bases.get(i));
+                if (finished == null) {
+                    break;
+                }
+                segment = finished.buffer();
+                end = finished.end();
+            }
+            while (end > 0 && result.size() < count) {
+                int length = segment.getInt(end - 4);
+                int start = end - 8 - length;
+                byte[] bytes = new byte[length];
+                segment.get(start + 4, bytes);
+                result.add(new String(bytes, StandardCharsets.UTF_8));
+                end = start;
+            }
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    // Offset just past the last record, where the next append goes
+    public long getEnd() {
+        lock.lock();
+        try {
+            return activeBase + (active != null ? active.position() : activeEnd);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Visit up to `max` records from `offset` on, oldest first, with the offset of each; returns
+    // the offset to continue from. Offsets are positions in the whole log (segment base +
+    // position), so they stay valid for the lifetime of the log. Used by SearchIndex.
+    public long scan(long offset, int max, ObjLongConsumer<String> visitor) {
+        List<Long> bases;
+        MappedByteBuffer current;
+        long currentBase;
+        int end;
+        lock.lock();
+        try {
+            bases = new ArrayList<>(segmentBases);
+            current = active().duplicate();
+            currentBase = activeBase;
+            end = active.position();
+        } catch (IOException e) {
+            ChatLog.error("Could not read room history in " + directory + ": " + e.getMessage());
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+
+        int visited = 0;
+        while (visited < max) {
+            int index = segmentIndex(bases, offset);
+            long base = bases.get(index);
+            Segment finished = base == currentBase ? null : sealed(base);
+            if (base != currentBase && finished == null) {
+                break;
+            }
+            java.nio.ByteBuffer segment = base == currentBase ? current : finished.buffer();
+            int limit = base == currentBase ? end : finished.end();
+            int position = (int) (offset - base);
+            while (visited < max && position + 4 <= limit) {
+                int length = segment.getInt(position);
+                if (length <= 0 || length > MAX_RECORD || position + 8 + length > limit) {
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                segment.get(position + 4, bytes);
+                visitor.accept(new String(bytes, StandardCharsets.UTF_8), base + position);
+                position += 8 + length;
+                visited++;
+            }
+            offset = base + position;
+            if (visited >= max || base == currentBase) {
+                break;
+            }
+            offset = bases.get(index + 1);  // end of a finished segment, go on in the next one
+        }
+        return offset;
+    }
+
+    // The record at `offset` (as passed to a scan visitor), or null
+    public String readAt(long offset) {
+        List<Long> bases;
+        MappedByteBuffer current;
+        long currentBase;
+        int end;
+        lock.lock();
+        try {
+            bases = new ArrayList<>(segmentBases);
+            current = active().duplicate();
+            currentBase = activeBase;
+            end = active.position();
+        } catch (IOException e) {
+            ChatLog.error("Could not read room history in " + directory + ": " + e.getMessage());
+            return null;
+        } finally {
+            lock.unlock();
+        }
+        long base = bases.get(segmentIndex(bases, offset));
+        Segment finished = base == currentBase ? null : sealed(base);
+        java.nio.ByteBuffer segment = base == currentBase ? current : finished == null ? null : finished.buffer();
+        int limit = base == currentBase ? end : finished == null ? 0 : finished.end();
+        int position = (int) (offset - base);
+        if (position < 0 || position + 4 > limit) {
+            return null;
+        }
+        int length = segment.getInt(position);
+        if (length <= 0 || length > MAX_RECORD || position + 8 + length > limit) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        segment.get(position + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // The segment holding `offset`: the last base at or below it
+    private static int segmentIndex(List<Long> bases, long offset) {
+        int index = Collections.binarySearch(bases, offset);
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    private Segment sealed(long base) {
+        SegmentKey key = new SegmentKey(directory, base);
+        Segment segment;
+        sealedLock.lock();
+        try {
+            segment = sealed.get(key);
+        } finally {
+            sealedLock.unlock();
+        }
+        if (segment == null) {
+            MappedByteBuffer buffer;
+            try {
+                buffer = map(base, FileChannel.MapMode.READ_ONLY);
+            } catch (IOException e) {
+                ChatLog.error("Could not read room history in " + directory + ": " + e.getMessage());
+                return null;
+            }
+            int limit = buffer.limit();
+            boolean footer = limit >= FOOTER && buffer.getInt(limit - FOOTER) == SEALED;
+            int end = footer ? buffer.getInt(limit - 4) : -1;
+            if (end < 0 || end > limit - FOOTER) {
+                end = lastRecordEnd(buffer);  // no footer (older log, or a crash while rolling)
+            }
+            segment = new Segment(buffer, end);
+            sealedLock.lock();
+            try {
+                sealed.put(key, segment);
+            } finally {
+                sealedLock.unlock();
+            }
+        }
+        return segment;
+    }
+
+    // End of the written part of a finished segment (it may have an unused tail)
+    private static int lastRecordEnd(java.nio.ByteBuffer segment) {
+        int position = 0;
+        while (position + 4 <= segment.limit()) {
+            int length = segment.getInt(position);
+            if (length <= 0 || length > MAX_RECORD || position + 8 + length > segment.limit()) {
+                break;
+            }
+            position += 8 + length;
+        }
+        return position;
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    public long getAppended() {
+        return appended;
+    }
+
+    // Stop the periodic flush and write out what is left; used when a room is reclaimed.
+    // Later appends are ignored.
+    public void close() {
+        flushTask.cancel(false);
+        MappedByteBuffer toForce;
+        lock.lock();
+        try {
+            closed = true;
+            toForce = dirty ? active : null;
+            dirty = false;
+            if (active != null) {
+                activeEnd = active.position();
+            }
+            active = null;
+            next = null;
+        } finally {
+            lock.unlock();
+        }
+        if (toForce != null) {
+            toForce.force();
+        }
+    }
+}
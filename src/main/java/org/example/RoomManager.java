@@ -1,43 +1,217 @@
 package org.example;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RoomManager {
 
-    private List<Room> rooms;
+    // Keyed by normalized name, so lookups are O(1) however many rooms exist
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final int roomCapacity;
+    private final Path historyDir;
+    private volatile ClusterNode cluster;
+    // Rooms plus creations in progress, so the MAX_ROOMS check and the insert are one step
+    private final AtomicInteger roomSlots = new AtomicInteger();
+    // Normalized username -> rooms that user made with /create and that still exist
+    private final ConcurrentHashMap<String, Integer> createdBy = new ConcurrentHashMap<>();
+    // /create from all users together, null = unlimited (RateLimits)
+    private final TokenBucket createRate = RateLimits.newCreateRoomBucket();
+
+    public static final int DEFAULT_ROOM_CAPACITY = 5;
+    // Messages replayed from the room log on /join: -Dchat.history.replay=N
+    public static final int HISTORY_REPLAY = Integer.getInteger("chat.history.replay", 10);
+    // Upper bound on rooms, so /create cannot grow memory without limit: -Dchat.room.max=N
+    public static final int MAX_ROOMS = Integer.getInteger("chat.room.max", 100_000);
+    // Rooms one user may have made with /create and not yet reclaimed: -Dchat.room.maxPerUser=N
+    public static final int MAX_ROOMS_PER_USER = Integer.getInteger("chat.room.maxPerUser", 10);
+    // Rooms made with /create are removed after being empty this long: -Dchat.room.idleSeconds=N (0 = never)
+    public static final long IDLE_SECONDS = Long.getLong("chat.room.idleSeconds", 300);
+
+    public static final String[] DEFAULT_ROOMS = {"Lobby", "testRoom1", "testRoom2", "testRoom3", "testRoom4"};
 
     public RoomManager() {
-        this.rooms = new ArrayList<Room>();
+        this(DEFAULT_ROOM_CAPACITY);
+    }
+
+    public RoomManager(int roomCapacity) {
+        this(roomCapacity, null);
+    }
+
+    // historyDir: where the per-room message logs live, or null to keep no history
+    public RoomManager(int roomCapacity, Path historyDir) {
+        this.roomCapacity = roomCapacity;
+        this.historyDir = historyDir;
         // Ændre til ordentlige room navne:
-        rooms.add(new Room("Lobby", 5));
-        rooms.add(new Room("testRoom1", 5));
-        rooms.add(new Room("testRoom2", 5));
-        rooms.add(new Room("testRoom3", 5));
-        rooms.add(new Room("testRoom4", 5));
+        for (String name : DEFAULT_ROOMS) {
+            Room room = new Room(name, roomCapacity);
+            room.setPermanent(true);
+            setUp(room);
+            rooms.put(normalize(name), room);
+        }
+        roomSlots.set(rooms.size());
+
+        if (IDLE_SECONDS > 0) {
+            ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "room-reaper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(1, IDLE_SECONDS / 4);
+            reaper.scheduleWithFixedDelay(this::reclaimIdleRooms, period, period, TimeUnit.SECONDS);
+        }
     }
 
-    public Room findRoomByName(String roomName) {
-        for(Room room : rooms) {
-            if (room.getRoomName().equalsIgnoreCase(roomName)) {
-                return room;
+    static String normalize(String roomName) {
+        return roomName.trim().toLowerCase(Locale.ROOT);
+    }
+
+    // Room names end up as directory names for the history log, so keep them plain
+    public static boolean isValidName(String roomName) {
+        if (roomName.isEmpty() || roomName.length() > 32) {
+            return false;
+        }
+        for (int i = 0; i < roomName.length(); i++) {
+            char c = roomName.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_')) {
+                return false;
             }
         }
-        return null;
+        return true;
     }
 
-    public boolean joinRoom(ClientHandler client, String roomName) {
+    // Cheap: the history log is only opened on the room's first message (Room.openHistory)
+    private void setUp(Room room) {
+        room.setCluster(cluster);
+        // Per-room scrollback size: -Dchat.room.recent.<room>=K
+        room.setRecentCapacity(Integer.getInteger("chat.room.recent." + room.getRoomName(), Room.DEFAULT_RECENT));
+        room.setHistoryDir(historyDir);
+    }
+
+    // New room made by `creator` with /create, or null if the name is taken, the creator
+    // has MAX_ROOMS_PER_USER rooms already, rooms are being created too fast or the room
+    // limit is reached. capacity <= 0 means the server's default room capacity.
+    // The other cluster nodes are told, so their users can join it too.
+    public Room createRoom(String creator, String roomName, int capacity) {
+        String owner = ClientRegistry.normalize(creator);
+        if (!reserveCreation(owner)) {
+            return null;
+        }
+        if (createRate != null && !createRate.tryAcquire(1)) {
+            releaseCreation(owner);
+            return null;
+        }
+        Room room = create(roomName, capacity, owner);
+        if (room == null) {
+            releaseCreation(owner);
+            return null;
+        }
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) {
+            cluster.roomCreated(room);
+        }
+        return room;
+    }
+
+    public int getRoomsCreatedBy(String username) {
+        return createdBy.getOrDefault(ClientRegistry.normalize(username), 0);
+    }
+
+    private boolean reserveCreation(String owner) {
+        boolean[] reserved = {false};
+        createdBy.compute(owner, (name, count) -> {
+            int current = count == null ? 0 : count;
+            if (current >= MAX_ROOMS_PER_USER) {
+                return count;
+            }
+            reserved[0] = true;
+            return current + 1;
+        });
+        return reserved[0];
+    }
+
+    private void releaseCreation(String owner) {
+        if (owner != null) {
+            createdBy.computeIfPresent(owner, (name, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    // A room created on another cluster node: the existing room, the new one, or null for a
+    // name this node does not accept or when the room limit is reached. Not announced again.
+    Room addRemoteRoom(String roomName, int capacity) {
+        if (!isValidName(roomName)) {
+            return null;
+        }
+        Room existing = findRoomByName(roomName);
+        if (existing != null) {
+            return existing;
+        }
+        Room room = create(roomName, capacity, null);
+        return room != null ? room : findRoomByName(roomName);
+    }
+
+    // The room is set up completely before it is published, so nobody finds a half-made room
+    private Room create(String roomName, int capacity, String owner) {
+        if (roomSlots.incrementAndGet() > MAX_ROOMS) {
+            roomSlots.decrementAndGet();
+            return null;
+        }
+        Room room = new Room(roomName, capacity > 0 ? capacity : roomCapacity);
+        room.setCreator(owner);
+        setUp(room);
+        if (rooms.putIfAbsent(normalize(roomName), room) != null) {
+            roomSlots.decrementAndGet();
+            return null;
+        }
+        ChatLog.info("Room created: " + roomName + " (capacity " + room.getMaxCapacity() + ")");
+        return room;
+    }
+
+    public void setCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+        for (Room room : rooms.values()) {
+            room.setCluster(cluster);
+        }
+    }
+
+    public Room findRoomByName(String roomName) {
+        return rooms.get(normalize(roomName));
+    }
+
+    // Join a room and leave the one(s) the client was in; returns the room, or null if it
+    // does not exist, is full or was just reclaimed
+    public Room join(ClientHandler client, String roomName) {
         Room room = findRoomByName(roomName);
-        if (room == null){
-            return false;
+        if (room == null) {
+            return null;
         }
 
-        if (room.isRoomFull()) {
-            return false;
+        if (room.containsClient(client)) {
+            return room;
         }
 
-        leaveAllRooms(client);
-        return room.addClient(client);
+        // addClient checks capacity atomically; only leave the old room once the new one accepted us
+        if (!room.addClient(client)) {
+            return null;
+        }
+        // The client's own membership set, not every room on the server
+        for (Room other : client.getRooms()) {
+            if (other != room) {
+                other.removeClient(client);
+            }
+        }
+        return room;
+    }
+
+    public boolean joinRoom(ClientHandler client, String roomName) {
+        return join(client, roomName) != null;
     }
 
     public boolean leaveRoom(ClientHandler client, String roomName) {
@@ -49,25 +223,91 @@ public class RoomManager {
     }
 
     public void leaveAllRooms(ClientHandler client) {
-        for (Room room : rooms) {
+        for (Room room : client.getRooms()) {
             room.removeClient(client);
         }
     }
 
+    // Drop created rooms that have been empty longer than IDLE_SECONDS
+    void reclaimIdleRooms() {
+        long cutoff = System.nanoTime() - TimeUnit.SECONDS.toNanos(IDLE_SECONDS);
+        for (Room room : rooms.values()) {
+            if (room.closeIfIdleSince(cutoff)) {
+                if (rooms.remove(normalize(room.getRoomName()), room)) {
+                    roomSlots.decrementAndGet();
+                    releaseCreation(room.getCreator());
+                }
+                room.closeHistory();
+                ChatLog.info("Room reclaimed after being idle: " + room.getRoomName());
+            }
+        }
+    }
+
+    // Server shutdown, step one: stop joins and leave notices while the clients are drained
+    public void closeRooms() {
+        for (Room room : rooms.values()) {
+            room.close();
+        }
+    }
+
+    // Server shutdown, step two: once the clients are gone, write the room logs out to disk
+    public void closeHistory() {
+        for (Room room : rooms.values()) {
+            room.closeHistory();
+        }
+    }
+
     public List<String> getRoomNames() {
         List<String> names = new ArrayList<>();
-        for (Room room : rooms) {
+        for (Room room : rooms.values()) {
             names.add(room.getRoomName());
         }
         return names;
     }
 
-    public List<Room> getAllRooms() {
-        return rooms;
+    public int getRoomCount() {
+        return rooms.size();
+    }
+
+    // Memory held by all rooms' scrollback buffers
+    public long getRecentBytes() {
+        long bytes = 0;
+        for (Room room : rooms.values()) {
+            bytes += room.getRecent().getBytes();
+        }
+        return bytes;
+    }
+
+    // Index segments of all rooms together (count, or bytes on disk); 0 without search
+    public long getSearchSegments(boolean bytes) {
+        long total = 0;
+        for (Room room : rooms.values()) {
+            SearchIndex search = room.getSearch();
+            if (search != null) {
+                total += bytes ? search.getSegmentBytes() : search.getSegmentCount();
+            }
+        }
+        return total;
+    }
+
+    public boolean hasHistory() {
+        return historyDir != null;
+    }
+
+    public long getRecentFrames() {
+        long frames = 0;
+        for (Room room : rooms.values()) {
+            frames += room.getRecent().size();
+        }
+        return frames;
+    }
+
+    public Collection<Room> getAllRooms() {
+        return rooms.values();
     }
 
 
-    public List<Room> getRooms() {
-        return rooms;
+    public Collection<Room> getRooms() {
+        return rooms.values();
     }
-}
\ No newline at end of file
+}
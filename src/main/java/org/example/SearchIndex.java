@@ -0,0 +1,439 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+// Full-text search over one room's history (/search), stored next to its RoomLog:
+//
+//   <dir>/<room>/index/<level>-<start>-<end>.idx      see IndexSegment
+//
+// The index is built from the log, not on the send path: a shared indexer thread reads the
+// records appended since it last looked and adds their log offsets to an in-memory buffer
+// (term -> ascending offsets). A full buffer becomes an immutable IndexSegment. Segments are
+// merged in the background, LSM style: MERGE_FACTOR segments of one level become one of the
+// next, so a search opens O(log n) segments and merging rewrites a posting O(log n) times.
+//
+// The log is the source of truth. After a restart indexing continues from the end of the
+// newest segment, so what was only in the buffer is read from the log again, and a history
+// written before the index existed is indexed in the background. An unreadable segment (an
+// older format, or damaged) throws the whole index away to be built again the same way.
+//
+// A search ANDs its terms and returns the newest matches, oldest first, like /history.
+//
+//   -Dchat.search.enabled=false          no index, even with --history-dir
+//   -Dchat.search.bufferPostings=200000  postings kept in memory before a segment is written
+//   -Dchat.search.indexMillis=200        how often the indexer looks for new messages
+//   -Dchat.search.mergeFactor=8          segments of one level merged into one of the next
+//   -Dchat.search.results=20             matches returned by /search
+public final class SearchIndex {
+    static final boolean ENABLED = !"false".equals(System.getProperty("chat.search.enabled"));
+    static final int BUFFER_POSTINGS = Integer.getInteger("chat.search.bufferPostings", 200_000);
+    static final long INDEX_MILLIS = Long.getLong("chat.search.indexMillis", 200);
+    static final int MERGE_FACTOR = Math.max(2, Integer.getInteger("chat.search.mergeFactor", 8));
+    static final int RESULTS = Integer.getInteger("chat.search.results", 20);
+    static final int MAX_TERM = 64;
+    private static final int SCAN_BATCH = 10_000;
+    private static final long[] NONE = new long[0];
+
+    private static final ScheduledExecutorService indexer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "search-indexer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ExecutorService merger = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "search-merger");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    // Ascending log offsets of one term in the buffer
+    private static final class Postings {
+        long[] offsets = new long[4];
+        int size = 0;
+
+        void add(long offset) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size++] = offset;
+        }
+    }
+
+    private final RoomLog log;
+    private final Path directory;
+    // Guards the buffer and the segment list against searches; the indexer thread is the
+    // only writer of the buffer, the merger only swaps segments
+    private final ReentrantLock lock = new ReentrantLock();
+    private Map<String, Postings> buffer = new HashMap<>();
+    private int buffered = 0;
+    private volatile List<IndexSegment> segments;  // ascending start, immutable list
+    private long bufferStart;    // indexer thread only: log offset the buffer starts at
+    private long indexedTo;      // indexer thread only: log offset of the next record to index
+    private volatile boolean closed = false;
+    private ScheduledFuture<?> indexTask;
+
+    private SearchIndex(RoomLog log, Path directory, List<IndexSegment> segments) {
+        this.log = log;
+        this.directory = directory;
+        this.segments = segments;
+        long end = 0;
+        for (IndexSegment segment : segments) {
+            end = Math.max(end, segment.getEnd());
+        }
+        this.bufferStart = end;
+        this.indexedTo = end;
+    }
+
+    public static SearchIndex open(RoomLog log) throws IOException {
+        Path directory = log.getDirectory().resolve("index");
+        Files.createDirectories(directory);
+        List<IndexSegment> found = new ArrayList<>();
+        List<Path> unreadable = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.delete(path);  // a segment that was being written during a crash
+                } else if (name.endsWith(".idx")) {
+                    try {
+                        found.add(IndexSegment.open(path));
+                    } catch (IOException e) {
+                        unreadable.add(path);
+                    }
+                }
+            }
+        }
+        if (!unreadable.isEmpty()) {
+            // An older format or a damaged file: the log is the source of truth, so index it again
+            ChatLog.warn("Rebuilding the search index in " + directory + ": " + unreadable.size() + " unreadable segments");
+            for (IndexSegment segment : found) {
+                Files.delete(segment.getPath());
+            }
+            for (Path path : unreadable) {
+                Files.delete(path);
+            }
+            found.clear();
+        }
+        // A merge interrupted after writing its output but before deleting its inputs
+        // leaves segments that another one covers
+        List<IndexSegment> live = new ArrayList<>();
+        for (IndexSegment segment : found) {
+            boolean covered = false;
+            for (IndexSegment other : found) {
+                if (other != segment && other.getLevel() > segment.getLevel()
+                        && other.getStart() <= segment.getStart() && segment.getEnd() <= other.getEnd()) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (covered) {
+                Files.delete(segment.getPath());
+            } else {
+                live.add(segment);
+            }
+        }
+        live.sort(Comparator.comparingLong(IndexSegment::getStart));
+
+        SearchIndex index = new SearchIndex(log, directory, List.copyOf(live));
+        index.indexTask = indexer.scheduleWithFixedDelay(index::indexNew, 0, INDEX_MILLIS, TimeUnit.MILLISECONDS);
+        merger.execute(index::mergeIfNeeded);
+        return index;
+    }
+
+    // Lowercased runs of letters and digits, each once; terms longer than MAX_TERM are cut
+    static Set<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= text.length(); ) {
+            int c = i < text.length() ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (term.length() < MAX_TERM) {
+                    term.appendCodePoint(Character.toLowerCase(c));
+                }
+            } else if (term.length() > 0) {
+                terms.add(term.toString());
+                term.setLength(0);
+            }
+            i += Character.charCount(c);
+        }
+        return terms;
+    }
+
+    // Indexer thread: everything the log got since the last run, a buffer flush when it is full
+    private void indexNew() {
+        if (closed) {
+            return;
+        }
+        try {
+            long before;
+            do {
+                before = indexedTo;
+                lock.lock();
+                try {
+                    indexedTo = log.scan(indexedTo, SCAN_BATCH, this::add);
+                } finally {
+                    lock.unlock();
+                }
+                if (buffered >= BUFFER_POSTINGS) {
+                    flush();
+                }
+            } while (indexedTo != before && !closed);
+        } catch (IOException | RuntimeException e) {
+            // Keep the scheduled task alive; the same records are tried again next time
+            ChatLog.error("Indexing " + directory + " failed: " + e.getMessage());
+        }
+    }
+
+    // Caller holds the lock
+    private void add(String line, long offset) {
+        for (String term : terms(line)) {
+            buffer.computeIfAbsent(term, key -> new Postings()).add(offset);
+            buffered++;
+        }
+        Metrics.searchIndexed();
+    }
+
+    private void flush() throws IOException {
+        // Only this thread writes the buffer, so it can be read without the lock
+        long start = bufferStart;
+        long end = indexedTo;
+        IndexSegment segment;
+        try (IndexSegment.Writer writer = new IndexSegment.Writer(directory.resolve(name(0, start, end)))) {
+            for (String term : new TreeSet<>(buffer.keySet())) {
+                Postings postings = buffer.get(term);
+                writer.add(term, postings.offsets, postings.size);
+            }
+            segment = writer.finish(0, start, end);
+        }
+        lock.lock();
+        try {
+            List<IndexSegment> updated = new ArrayList<>(segments);
+            updated.add(segment);
+            segments = List.copyOf(updated);
+            buffer = new HashMap<>();
+            buffered = 0;
+        } finally {
+            lock.unlock();
+        }
+        bufferStart = end;
+        Metrics.searchSegmentWritten();
+        merger.execute(this::mergeIfNeeded);
+    }
+
+    private static String name(int level, long start, long end) {
+        return String.format("%d-%020d-%020d.idx", level, start, end);
+    }
+
+    // Merger thread: while some level has MERGE_FACTOR segments, merge its oldest ones. Segment
+    // levels never increase towards the newest, so those are always adjacent in the log.
+    private void mergeIfNeeded() {
+        while (!closed) {
+            List<IndexSegment> inputs = pickMerge(segments);
+            if (inputs == null) {
+                return;
+            }
+            try {
+                IndexSegment merged = merge(inputs);
+                lock.lock();
+                try {
+                    List<IndexSegment> updated = new ArrayList<>(segments);
+                    updated.removeAll(inputs);
+                    updated.add(merged);
+                    updated.sort(Comparator.comparingLong(IndexSegment::getStart));
+                    segments = List.copyOf(updated);
+                } finally {
+                    lock.unlock();
+                }
+                // Searches still reading an input keep their mapping; the file goes with the last of them
+                for (IndexSegment input : inputs) {
+                    Files.deleteIfExists(input.getPath());
+                }
+                Metrics.searchMerged();
+            } catch (IOException e) {
+                ChatLog.error("Merging index segments in " + directory + " failed: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private static List<IndexSegment> pickMerge(List<IndexSegment> current) {
+        Map<Integer, List<IndexSegment>> byLevel = new HashMap<>();
+        for (IndexSegment segment : current) {
+            byLevel.computeIfAbsent(segment.getLevel(), level -> new ArrayList<>()).add(segment);
+        }
+        List<IndexSegment> lowest = null;
+        for (Map.Entry<Integer, List<IndexSegment>> level : byLevel.entrySet()) {
+            if (level.getValue().size() >= MERGE_FACTOR
+                    && (lowest == null || level.getKey() < lowest.get(0).getLevel())) {
+                lowest = level.getValue();
+            }
+        }
+        return lowest == null ? null : lowest.subList(0, MERGE_FACTOR);
+    }
+
+    // Inputs cover consecutive ranges of the log, so a term's postings are their concatenation.
+    // Their dictionaries are sorted, so one pass with a cursor per input visits every term once.
+    private IndexSegment merge(List<IndexSegment> inputs) throws IOException {
+        int level = inputs.get(0).getLevel() + 1;
+        long start = inputs.get(0).getStart();
+        long end = inputs.get(inputs.size() - 1).getEnd();
+        try (IndexSegment.Writer writer = new IndexSegment.Writer(directory.resolve(name(level, start, end)))) {
+            return merge(inputs, writer).finish(level, start, end);
+        }
+    }
+
+    private static IndexSegment.Writer merge(List<IndexSegment> inputs, IndexSegment.Writer writer) throws IOException {
+        int[] cursor = new int[inputs.size()];
+        String[] current = new String[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            current[i] = inputs.get(i).getTermCount() > 0 ? inputs.get(i).term(0) : null;
+        }
+        long[] merged = new long[1024];
+        while (true) {
+            String term = null;
+            for (String candidate : current) {
+                if (candidate != null && (term == null || candidate.compareTo(term) < 0)) {
+                    term = candidate;
+                }
+            }
+            if (term == null) {
+                break;
+            }
+            int size = 0;
+            for (int i = 0; i < inputs.size(); i++) {
+                if (!term.equals(current[i])) {
+                    continue;
+                }
+                IndexSegment input = inputs.get(i);
+                long[] postings = input.postingsAt(cursor[i]);
+                if (size + postings.length > merged.length) {
+                    merged = Arrays.copyOf(merged, Math.max(merged.length * 2, size + postings.length));
+                }
+                System.arraycopy(postings, 0, merged, size, postings.length);
+                size += postings.length;
+                cursor[i]++;
+                current[i] = cursor[i] < input.getTermCount() ? input.term(cursor[i]) : null;
+            }
+            writer.add(term, merged, size);
+        }
+        return writer;
+    }
+
+    // The newest `limit` messages containing all terms of `query`, oldest first
+    public List<String> search(String query, int limit) {
+        long startNanos = System.nanoTime();
+        Set<String> terms = terms(query);
+        List<String> lines = new ArrayList<>();
+        if (terms.isEmpty() || limit <= 0) {
+            return lines;
+        }
+
+        List<IndexSegment> snapshot;
+        long[][] fromBuffer = new long[terms.size()][];
+        lock.lock();
+        try {
+            snapshot = segments;
+            int i = 0;
+            for (String term : terms) {
+                Postings postings = buffer.get(term);
+                fromBuffer[i++] = postings == null ? NONE : Arrays.copyOf(postings.offsets, postings.size);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // Newest first: the buffer, then the segments from the newest back
+        long[] found = new long[limit];
+        int count = collect(intersect(fromBuffer), found, 0);
+        for (int s = snapshot.size() - 1; s >= 0 && count < limit; s--) {
+            IndexSegment segment = snapshot.get(s);
+            long[][] lists = new long[terms.size()][];
+            int i = 0;
+            for (String term : terms) {
+                long[] postings = segment.postings(term);
+                if (postings == null) {
+                    lists = null;
+                    break;
+                }
+                lists[i++] = postings;
+            }
+            if (lists != null) {
+                count = collect(intersect(lists), found, count);
+            }
+        }
+        for (int i = count - 1; i >= 0; i--) {
+            String line = log.readAt(found[i]);
+            if (line != null) {
+                lines.add(line);
+            }
+        }
+        Metrics.search(System.nanoTime() - startNanos);
+        return lines;
+    }
+
+    // Append matches newest first until `found` is full; returns the new count
+    private static int collect(long[] matches, long[] found, int count) {
+        for (int i = matches.length - 1; i >= 0 && count < found.length; i--) {
+            found[count++] = matches[i];
+        }
+        return count;
+    }
+
+    // Offsets present in every list; walks the shortest, binary-searches the others forward
+    private static long[] intersect(long[][] lists) {
+        Arrays.sort(lists, Comparator.comparingInt(list -> list.length));
+        long[] shortest = lists[0];
+        long[] result = new long[shortest.length];
+        int[] from = new int[lists.length];
+        int size = 0;
+        candidates:
+        for (long candidate : shortest) {
+            for (int i = 1; i < lists.length; i++) {
+                int at = Arrays.binarySearch(lists[i], from[i], lists[i].length, candidate);
+                if (at < 0) {
+                    from[i] = -at - 1;
+                    continue candidates;
+                }
+                from[i] = at + 1;
+            }
+            result[size++] = candidate;
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public long getSegmentBytes() {
+        long bytes = 0;
+        for (IndexSegment segment : segments) {
+            bytes += segment.getBytes();
+        }
+        return bytes;
+    }
+
+    // Stop indexing; the buffer is not written out, the next start reads it from the log again
+    public void close() {
+        closed = true;
+        indexTask.cancel(false);
+    }
+}
@@ -1,102 +1,394 @@
 package org.example;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 import java.net.*;
 import java.io.*;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 public class Server {
-    private List<ClientHandler> clients = new ArrayList<>();
+    // Shutdown: how long clients get to receive what is queued for them (-Dchat.shutdown.drainSeconds),
+    // and over how many seconds their reconnects are spread (-Dchat.shutdown.reconnectSpreadSeconds)
+    static final long DRAIN_SECONDS = Long.getLong("chat.shutdown.drainSeconds", 10);
+    static final long RECONNECT_SPREAD_SECONDS = Long.getLong("chat.shutdown.reconnectSpreadSeconds", 30);
+
+    private final ClientRegistry clients = new ClientRegistry();
     private RoomManager roomManager;
+    private volatile ClusterNode cluster;
+    private volatile FileTransferServer fileTransfer;
+    private volatile SSLContext tlsContext;  // null = plain TCP on the chat port
+    private volatile Authenticator authenticator;  // null = anyone may log in as any free name
+    private final SessionManager sessions = new SessionManager();
+    // Heartbeats and idle timeouts of all connections share this one timer thread
+    private final HashedWheelTimer timer = new HashedWheelTimer("idle-timer", 100, TimeUnit.MILLISECONDS, 512);
+    // Listening sockets, closed first on shutdown so nobody new gets in
+    private final List<Closeable> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean shuttingDown = false;
 
     public Server() {
-        this.roomManager = new RoomManager();
-        startStatusThread();
+        this(RoomManager.DEFAULT_ROOM_CAPACITY);
+    }
+
+    public Server(int roomCapacity) {
+        this(roomCapacity, null);
+    }
+
+    public Server(int roomCapacity, Path historyDir) {
+        this.roomManager = new RoomManager(roomCapacity, historyDir);
     }
 
     public RoomManager getRoomManager() {
         return roomManager;
     }
 
+    public ClusterNode getCluster() {
+        return cluster;
+    }
+
+    public void setCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+        roomManager.setCluster(cluster);
+    }
+
+    // null when the server runs without --file-port
+    public FileTransferServer getFileTransfer() {
+        return fileTransfer;
+    }
+
+    public void setFileTransfer(FileTransferServer fileTransfer) {
+        this.fileTransfer = fileTransfer;
+    }
+
+    public SSLContext getTlsContext() {
+        return tlsContext;
+    }
+
+    public void setTlsContext(SSLContext tlsContext) {
+        this.tlsContext = tlsContext;
+    }
+
+    public Authenticator getAuthenticator() {
+        return authenticator;
+    }
+
+    public void setAuthenticator(Authenticator authenticator) {
+        this.authenticator = authenticator;
+    }
+
+    SessionManager getSessions() {
+        return sessions;
+    }
+
+    public HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    public void addListener(Closeable listener) {
+        listeners.add(listener);
+    }
+
+    public boolean isShuttingDown() {
+        return shuttingDown;
+    }
+
+    // Runs from the JVM shutdown hook (SIGTERM, Ctrl-C). Stop accepting, tell every client
+    // when to come back, let the connections write out what they have queued until the
+    // deadline, then abort whoever is left and log what could not be delivered.
+    // Each client gets its own random reconnect delay, so a rolling restart does not bring
+    // every client back at the same instant.
+    public void shutdown() {
+        shuttingDown = true;
+        long start = System.nanoTime();
+        for (Closeable listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                ChatLog.error("Error closing listener: " + e.getMessage());
+            }
+        }
+        FileTransferServer fileTransfer = this.fileTransfer;
+        if (fileTransfer != null) {
+            try {
+                fileTransfer.stop();
+            } catch (IOException e) {
+                ChatLog.error("Error closing file transfer port: " + e.getMessage());
+            }
+        }
+        roomManager.closeRooms();
+
+        ChatLog.info("Shutting down: notifying " + clients.size() + " clients, draining for up to " + DRAIN_SECONDS + "s");
+        long droppedBefore = Metrics.getDroppedFrames();
+        int notified = 0;
+        for (ClientHandler client : clients.clients()) {
+            long delay = RECONNECT_SPREAD_SECONDS > 0
+                    ? ThreadLocalRandom.current().nextLong(1, RECONNECT_SPREAD_SECONDS + 1) : 0;
+            client.disconnectForShutdown("Server is shutting down. Please reconnect in " + delay + " seconds.");
+            notified++;
+        }
+
+        long deadline = start + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+        while (clients.size() > 0 && System.nanoTime() - deadline < 0) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        int aborted = 0;
+        long undelivered = 0;
+        for (ClientHandler client : clients.clients()) {
+            undelivered += client.abortForShutdown();
+            aborted++;
+        }
+        roomManager.closeHistory();
+
+        ChatLog.info("Shutdown complete in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms: "
+                + (notified - aborted) + " clients drained, " + aborted + " aborted at the deadline with "
+                + undelivered + " frames undelivered, " + (Metrics.getDroppedFrames() - droppedBefore)
+                + " frames dropped by full queues, " + ChatLog.getDropped() + " log lines dropped");
+        ChatLog.flush();
+    }
+
     public void addClient(ClientHandler client) {
         clients.add(client);
-        System.out.println("Client added. Total clients: " + clients.size());
+        ChatLog.info("Client added. Total clients: " + clients.size());
     }
 
     public void removeClient(ClientHandler client) {
         if (client==null){
-            System.err.println("Client is null");
+            ChatLog.error("Client is null");
             return;
         }
-            clients.remove(client);
-            System.out.println("Client removed. Total clients: " + clients.size());
+        if (clients.remove(client)) {
+            ChatLog.info("Client removed. Total clients: " + clients.size());
+            ClusterNode cluster = this.cluster;
+            if (cluster != null && client.isLoggedIn()) {
+                cluster.userOffline(client.getUsername());
+            }
+        }
+    }
+
+    // A resumed session moves to its new connection; the user never went offline for the cluster
+    public void replaceClient(ClientHandler previous, ClientHandler client) {
+        clients.replace(previous, client);
+    }
 
+    // Claim a username at login; fails if someone else is already using it, here or on
+    // another cluster node (two nodes claiming the same name at the same instant can both win)
+    public boolean registerUsername(ClientHandler client, String username) {
+        ClusterNode cluster = this.cluster;
+        if (cluster != null && cluster.isRemoteUser(username)) {
+            return false;
+        }
+        if (!clients.registerUsername(client, username)) {
+            return false;
+        }
+        if (cluster != null) {
+            cluster.userOnline(username);
+        }
+        return true;
     }
 
     public ClientHandler findClientByUsername(String username) {
         if (username.isEmpty() || username.equals("")) {
-            System.err.println("Username is empty or null");
+            ChatLog.error("Username is empty or null");
             return null;
         }
-        for (ClientHandler client : clients) {
-            if (client.getUsername().equalsIgnoreCase(username)) {
-                return client;
-            }
-        }
-        return null;
+        return clients.findByUsername(username);
     }
 
     public void broadcastMessage(String message, ClientHandler sender) {
-        System.out.println("Broadcasting message: " + message);
-        for (ClientHandler client : clients) {
+        if (ChatLog.sampled()) {
+            ChatLog.info("Broadcasting message: " + message);
+        }
+        SharedFrame frame = new SharedFrame(message, clients.size());
+        for (ClientHandler client : clients.clients()) {
             if (client != sender) {
-                client.sendMessage(message);
+                client.sendFrame(frame);
             }
         }
     }
 
-    // Start a thread that prints server statistics every 5 minutes
-    private void startStatusThread() {
-        Thread statusThread = new Thread(() -> {
-            while (true) {
-                try {
-                    Thread.sleep(300000); // 5 minutes
+    // Send a finished PM line to a user on another cluster node; false if nobody has them
+    public boolean sendRemotePrivate(String username, String line) {
+        ClusterNode cluster = this.cluster;
+        return cluster != null && cluster.forwardPrivate(username, line);
+    }
 
-                    // Print statistics
-                    System.out.println("\n=== SERVER STATUS ===");
-                    System.out.println("Total clients: " + clients.size());
+    public Collection<ClientHandler> getClients() {
+        return clients.clients();
+    }
 
+    public int getClientCount() {
+        return clients.size();
+    }
 
-                } catch (InterruptedException e) {
-                    break;
-                }
+    // Sum (or max) of frames waiting in the clients' outbound queues; walks all clients, so scrape-time only
+    public long getOutboundQueueDepth(boolean max) {
+        long result = 0;
+        for (ClientHandler client : clients.clients()) {
+            int depth = client.getQueuedFrames();
+            result = max ? Math.max(result, depth) : result + depth;
+        }
+        return result;
+    }
+
+    // Usernames allowed to run admin commands such as /stats: -Dchat.admins=alice,bob.
+    // Fails closed: nobody is admin when the property is not set, or without --credentials,
+    // where anyone could log in under an admin's name.
+    public boolean isAdmin(String username) {
+        String admins = System.getProperty("chat.admins");
+        if (admins == null || authenticator == null) {
+            return false;
+        }
+        for (String admin : admins.split(",")) {
+            if (admin.trim().equalsIgnoreCase(username)) {
+                return true;
             }
-        });
-        statusThread.setDaemon(true);
-        statusThread.start();
+        }
+        return false;
+    }
+
+    // Value following a "--name" option, or the fallback if it is absent
+    static String option(String[] args, String name, String fallback) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return fallback;
+    }
+
+    static boolean hasFlag(String[] args, String name) {
+        for (String arg : args) {
+            if (arg.equals(name)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public static void main(String[] args) {
-        Server server = new Server();
+        // --port N, --room-capacity N: defaults are 5001 and 5
+        // --history-dir DIR: keep a persistent message log per room (off by default)
+        int port = Integer.parseInt(option(args, "--port", "5001"));
+        String historyDir = option(args, "--history-dir", null);
+        Server server = new Server(Integer.parseInt(option(args, "--room-capacity",
+                String.valueOf(RoomManager.DEFAULT_ROOM_CAPACITY))),
+                historyDir != null ? Path.of(historyDir) : null);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown, "chat-shutdown"));
 
         try {
-            ServerSocket serverSocket = new ServerSocket(5001);
-            System.out.println("Chat Server listening on port 5001");
-            System.out.println("Available rooms: Lobby, testRoom1, testRoom2, testRoom3, testRoom4)");
+            // --tls KEYSTORE: TLS on the chat port, PKCS12 keystore (see Tls for a self-signed one)
+            String keystore = option(args, "--tls", null);
+            if (keystore != null) {
+                server.setTlsContext(Tls.serverContext(Path.of(keystore)));
+            }
+
+            // --credentials FILE: log in with a password from this file (see CredentialStore)
+            String credentials = option(args, "--credentials", null);
+            if (credentials != null) {
+                CredentialStore store = CredentialStore.load(Path.of(credentials));
+                server.setAuthenticator(new Authenticator(store));
+                ChatLog.info("Password login required, " + store.size() + " users in " + credentials);
+            }
+
+            // Metrics: always over JMX, and as plain text on 127.0.0.1 with --metrics-port N
+            new ChatStats(server).register();
+            // --cluster-port N --peers host:port,... --cluster-secret FILE [--cluster-bind ADDR] [--node-id ID]:
+            // share rooms and PMs with other servers. Every node needs the same secret; the
+            // cluster port only listens on loopback unless --cluster-bind says otherwise.
+            String clusterPort = option(args, "--cluster-port", null);
+            if (clusterPort != null) {
+                String secretFile = option(args, "--cluster-secret", null);
+                if (secretFile == null) {
+                    throw new IOException("--cluster-port needs --cluster-secret FILE");
+                }
+                byte[] secret = Files.readString(Path.of(secretFile)).strip().getBytes(StandardCharsets.UTF_8);
+                if (secret.length == 0) {
+                    throw new IOException("Cluster secret file " + secretFile + " is empty");
+                }
+                String peers = option(args, "--peers", "");
+                String nodeId = option(args, "--node-id", InetAddress.getLocalHost().getHostName() + ":" + clusterPort);
+                ClusterNode cluster = new ClusterNode(server, nodeId,
+                        InetAddress.getByName(option(args, "--cluster-bind", "127.0.0.1")),
+                        Integer.parseInt(clusterPort), secret,
+                        peers.isEmpty() ? List.of() : List.of(peers.split(",")));
+                server.setCluster(cluster);
+                cluster.start();
+            }
+
+            // --file-port N [--file-spool DIR]: real file transfer on a side port
+            String filePort = option(args, "--file-port", null);
+            if (filePort != null) {
+                FileTransferServer fileTransfer = new FileTransferServer(Integer.parseInt(filePort),
+                        Path.of(option(args, "--file-spool", "spool")), server.getTimer());
+                fileTransfer.start();
+                server.setFileTransfer(fileTransfer);
+            }
+
+            String metricsPort = option(args, "--metrics-port", null);
+            if (metricsPort != null) {
+                new MetricsEndpoint(server, Integer.parseInt(metricsPort)).start();
+            }
+
+            // --nio [--loops N]: selector based event loops instead of a thread per client
+            if (hasFlag(args, "--nio")) {
+                int loops = Integer.parseInt(option(args, "--loops",
+                        String.valueOf(Runtime.getRuntime().availableProcessors())));
+                new NioServer(server, port, loops).run();
+                return;
+            }
+
+            // --virtual: one virtual thread per client instead of a platform thread
+            ExecutorService executor = hasFlag(args, "--virtual")
+                    ? Executors.newVirtualThreadPerTaskExecutor()
+                    : null;
+
+            SSLContext tls = server.getTlsContext();
+            ServerSocket serverSocket = tls != null
+                    ? tls.getServerSocketFactory().createServerSocket(port)
+                    : new ServerSocket(port);
+            server.addListener(serverSocket);
+            ChatLog.info("Chat Server listening on port " + port + (executor != null ? " (virtual threads)" : "")
+                    + (tls != null ? " (TLS)" : ""));
+            ChatLog.info("Available rooms: Lobby, testRoom1, testRoom2, testRoom3, testRoom4)");
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected: " + clientSocket.getInetAddress());
+                ChatLog.info("New client connected: " + clientSocket.getInetAddress());
+                // The handshake itself runs on the client's own thread, at its first read or write
+                if (clientSocket instanceof SSLSocket ssl) {
+                    long started = System.currentTimeMillis();
+                    ssl.addHandshakeCompletedListener(event -> Tls.handshakeCompleted(event.getSession(), started));
+                }
 
                 ClientHandler clientHandler = new ClientHandler(clientSocket, server);
-                Thread clientThread = new Thread(clientHandler);
-                clientThread.start();
+                if (executor != null) {
+                    executor.execute(clientHandler);
+                } else {
+                    Thread clientThread = new Thread(clientHandler);
+                    clientThread.start();
+                }
             }
         } catch (SocketException e) {
-            System.err.println("Socket exception: " + e.getMessage());
+            if (!server.isShuttingDown()) {  // accept() fails when shutdown closes the listener
+                ChatLog.error("Socket exception: " + e.getMessage());
+            }
         } catch (SocketTimeoutException e) {
-            System.err.println("Socket timeout: " + e.getMessage());
+            ChatLog.error("Socket timeout: " + e.getMessage());
         } catch (IOException e) {
-            System.err.println("I/O exception: " + e.getMessage());
+            ChatLog.error("I/O exception: " + e.getMessage());
         }
     }
 }
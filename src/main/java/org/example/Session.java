@@ -0,0 +1,281 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
+
+// The output side of one logged-in user, outliving the socket it is currently attached to.
+// Everything the ClientHandler sends goes through here: the frame is numbered, kept in a ring
+// of the last SessionManager.REPLAY frames and passed on to the transport, all under one lock,
+// so the numbering is exactly the order the client receives. While detached there is no
+// transport and frames only go into the ring.
+//
+// Frames are kept as they were queued (the same SharedFrames as the room broadcast, or
+// read-only buffers), so the ring costs references, not copies. A replayed SharedFrame is
+// encoded in the new connection's format.
+final class Session implements Connection {
+    private final String id;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Object[] ring = new Object[Math.max(SessionManager.REPLAY, 1)];  // SharedFrame or ByteBuffer
+    private long sent = 0;                 // sequence number of the last frame, guarded by lock
+    private volatile Connection transport; // null while detached, written under lock
+    private ClientHandler owner;           // guarded by lock
+    private long generation = 0;           // bumped by every detach and claim, guarded by lock
+    private boolean expired = false;       // guarded by lock
+
+    Session(String id, ClientHandler owner, Connection transport) {
+        this.id = id;
+        this.owner = owner;
+        this.transport = transport;
+        transport.disconnectOnOverflow();
+    }
+
+    String getId() {
+        return id;
+    }
+
+    // Publish the session (the handler starts sending through it) and send `notice` uncounted,
+    // as one step, so nothing sent through the session can overtake the notice
+    void open(SharedFrame notice, Runnable publish) {
+        lock.lock();
+        try {
+            publish.run();
+            transport.sendShared(notice);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    ClientHandler getOwner() {
+        lock.lock();
+        try {
+            return owner;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isDetached() {
+        lock.lock();
+        try {
+            return transport == null && !expired;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The owner's socket is gone; returns the generation for expireIfDetached, or -1 if
+    // `client` no longer owns the session
+    long detach(ClientHandler client) {
+        lock.lock();
+        try {
+            if (owner != client || expired) {
+                return -1;
+            }
+            transport = null;
+            return ++generation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Grace period over: returns the owner, which must now leave for real, or null if the
+    // session was resumed (or detached again) in the meantime
+    ClientHandler expireIfDetached(long detachedGeneration) {
+        lock.lock();
+        try {
+            if (transport != null || expired || generation != detachedGeneration) {
+                return null;
+            }
+            expired = true;
+            return owner;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A new connection takes the session over; returns the previous owner (maybe still
+    // attached, e.g. a half-open socket the server has not noticed yet), or null if expired.
+    // Until attach() the session is detached and frames only go into the ring.
+    ClientHandler claim(ClientHandler client) {
+        lock.lock();
+        try {
+            if (expired) {
+                return null;
+            }
+            ClientHandler previous = owner;
+            owner = client;
+            transport = null;
+            generation++;
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Attach the new transport: `notice(first)` goes out uncounted, then the frames after
+    // lastSeq that are still in the ring. first - 1 is where the client continues counting;
+    // it is above lastSeq when frames fell out of the ring. With `binary` the notice is the
+    // connection's last text frame and the replay is binary. Returns the frames replayed.
+    int attach(Connection connection, long lastSeq, LongFunction<ByteBuffer> notice, boolean binary) {
+        lock.lock();
+        try {
+            long oldest = Math.max(1, sent - ring.length + 1);
+            long first = Math.min(Math.max(lastSeq + 1, oldest), sent + 1);
+            connection.disconnectOnOverflow();
+            if (binary) {
+                connection.startBinary(notice.apply(first - 1));
+            } else {
+                connection.sendFrame(notice.apply(first - 1));
+            }
+            int replayed = (int) (sent - first + 1);
+            List<SharedFrame> run = new ArrayList<>();
+            for (long seq = first; seq <= sent; seq++) {
+                if (ring[slot(seq)] instanceof SharedFrame frame) {
+                    run.add(frame);
+                } else {
+                    replay(connection, run);
+                    connection.sendFrame((ByteBuffer) ring[slot(seq)]);
+                }
+            }
+            replay(connection, run);
+            transport = connection;
+            Metrics.sessionResumed(replayed, first > lastSeq + 1);
+            return replayed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Consecutive SharedFrames go out as one batch
+    private static void replay(Connection connection, List<SharedFrame> run) {
+        if (!run.isEmpty()) {
+            connection.sendAllShared(run);
+            run.clear();
+        }
+    }
+
+    private int slot(long seq) {
+        return (int) (seq % ring.length);
+    }
+
+    // Caller holds the lock
+    private void record(Object frame) {
+        ring[slot(++sent)] = frame;
+    }
+
+    @Override
+    public void sendFrame(ByteBuffer frame) {
+        lock.lock();
+        try {
+            record(frame);
+            if (transport != null) {
+                transport.sendFrame(frame);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void sendFrames(List<ByteBuffer> frames) {
+        lock.lock();
+        try {
+            for (ByteBuffer frame : frames) {
+                record(frame);
+            }
+            if (transport != null) {
+                transport.sendFrames(frames);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void sendShared(SharedFrame frame) {
+        lock.lock();
+        try {
+            record(frame);
+            if (transport != null) {
+                transport.sendShared(frame);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void sendAllShared(List<SharedFrame> frames) {
+        lock.lock();
+        try {
+            for (SharedFrame frame : frames) {
+                record(frame);
+            }
+            if (transport != null) {
+                transport.sendAllShared(frames);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Like "OK DEFLATE", "OK BINARY" is not counted: a resumed connection gets its format from attach
+    @Override
+    public void startBinary(ByteBuffer reply) {
+        lock.lock();
+        try {
+            if (transport != null) {
+                transport.startBinary(reply);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The "OK DEFLATE" reply is not counted: a resumed connection starts uncompressed
+    @Override
+    public boolean startCompression(ByteBuffer reply) {
+        lock.lock();
+        try {
+            return transport != null && transport.startCompression(reply);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The rest is the transport's business; ClientHandler closes its own connection, not this
+    @Override
+    public int getQueuedFrames() {
+        Connection current = transport;
+        return current != null ? current.getQueuedFrames() : 0;
+    }
+
+    @Override
+    public int getRemotePort() {
+        Connection current = transport;
+        return current != null ? current.getRemotePort() : -1;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        Connection current = transport;
+        return current != null ? current.getRemoteAddress() : "detached";
+    }
+
+    @Override
+    public void close() {
+        Connection current = transport;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        Connection current = transport;
+        return current != null && current.isOpen();
+    }
+}
@@ -0,0 +1,68 @@
+package org.example;
+
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Resumable sessions, so a client whose socket drops (a phone switching networks) gets its
+// rooms back and the messages it missed, without "left the room" / "joined the room" in
+// every room it was in.
+//
+// After login the server sends "SESSION <id>". The client counts the lines (or binary frames)
+// it receives after that one; replies to /binary and /compress and the "RESUMED" line below
+// are not counted. When the socket drops, the user stays in its rooms and keeps its name for
+// GRACE_SECONDS, and what is sent to it goes into its Session's ring. A new connection sends,
+// instead of logging in:
+//
+//   RESUME <id> <count>
+//
+// and gets "RESUMED <n>", followed by the frames after number n that it missed, then the
+// live stream. n is normally the client's own count; it is higher when more than REPLAY
+// frames were missed and the oldest are gone, and the client continues counting from n.
+// If the session was in binary mode, everything after the RESUMED line is binary again.
+// Replayed frames go out uncompressed; /compress can be sent again.
+//
+// The count only works if no frame is lost on the way, so a connection with a session never
+// drops frames under -Dchat.outbound.policy=DROP_OLDEST: it is disconnected instead, and resumes.
+//
+//   -Dchat.session.graceSeconds=120   how long a dropped session can be resumed (0 = off)
+//   -Dchat.session.replay=256         frames kept per session for replay
+final class SessionManager {
+    static final long GRACE_SECONDS = Long.getLong("chat.session.graceSeconds", 120);
+    static final int REPLAY = Integer.getInteger("chat.session.replay", 256);
+    static final boolean ENABLED = GRACE_SECONDS > 0;
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    Session create(ClientHandler owner, Connection transport) {
+        byte[] bytes = new byte[18];
+        random.nextBytes(bytes);
+        Session session = new Session(HexFormat.of().formatHex(bytes), owner, transport);
+        sessions.put(session.getId(), session);
+        return session;
+    }
+
+    Session find(String id) {
+        return sessions.get(id);
+    }
+
+    void remove(Session session) {
+        sessions.remove(session.getId(), session);
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    // Walks all sessions, so scrape-time only
+    int getDetached() {
+        int detached = 0;
+        for (Session session : sessions.values()) {
+            if (session.isDetached()) {
+                detached++;
+            }
+        }
+        return detached;
+    }
+}
@@ -0,0 +1,84 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+
+// One outgoing broadcast line, encoded at most once per wire format no matter
+// how many recipients use it. Rooms keep recent frames for scrollback, so other threads
+// may read it later; at worst two threads both encode and one result wins.
+//
+// Replies to a single client are SharedFrames too, with one recipient: the format is picked
+// by the connection's OutboundQueue when it is queued, under the same lock as /binary.
+public final class SharedFrame {
+    private static final long ENCODE_TIME = Long.MIN_VALUE;  // binary timestamp taken when encoded
+
+    private final String line;
+    private final int recipients;
+    private final MessageType type;
+    private final long clientNumber;
+    private final long timestamp;
+    private final String payload;
+    private volatile ByteBuffer text;
+    private volatile ByteBuffer binary;
+    private volatile ByteBuffer deflatedText;
+    private volatile ByteBuffer deflatedBinary;
+
+    // A server notice, TEXT from the server in binary format
+    public SharedFrame(String line, int recipients) {
+        this(line, recipients, MessageType.TEXT, BinaryCodec.SERVER_CLIENT_ID, ENCODE_TIME, line);
+    }
+
+    // A protocol message for one client: `line` in text format, the typed frame in binary
+    public SharedFrame(String line, MessageType type, long clientNumber, long timestamp, String payload) {
+        this(line, 1, type, clientNumber, timestamp, payload);
+    }
+
+    private SharedFrame(String line, int recipients, MessageType type, long clientNumber, long timestamp,
+                        String payload) {
+        this.line = line;
+        this.recipients = recipients;
+        this.type = type;
+        this.clientNumber = clientNumber;
+        this.timestamp = timestamp;
+        this.payload = payload;
+    }
+
+    public String getLine() {
+        return line;
+    }
+
+    public ByteBuffer text() {
+        if (text == null) {
+            // A heap buffer, whatever the fan-out: the socket copies it into the JDK's own cached
+            // direct buffer anyway, and a direct one per broadcast is slow to allocate and only
+            // freed by GC
+            text = Frames.encodeLine(line);
+        }
+        return text;
+    }
+
+    public int getRecipients() {
+        return recipients;
+    }
+
+    // Compressed on its own, once for every compressing member of a big room (StreamCompressor)
+    public ByteBuffer deflated(boolean binaryFormat) {
+        if (binaryFormat) {
+            if (deflatedBinary == null) {
+                deflatedBinary = StreamCompressor.deflateAlone(binary());
+            }
+            return deflatedBinary;
+        }
+        if (deflatedText == null) {
+            deflatedText = StreamCompressor.deflateAlone(text());
+        }
+        return deflatedText;
+    }
+
+    public ByteBuffer binary() {
+        if (binary == null) {
+            binary = BinaryCodec.encode(type, clientNumber,
+                    timestamp == ENCODE_TIME ? System.currentTimeMillis() : timestamp, payload);
+        }
+        return binary;
+    }
+}
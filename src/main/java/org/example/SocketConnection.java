@@ -0,0 +1,179 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Blocking transport: one thread reads the socket, a writer task owns the output stream.
+// sendFrame only enqueues, so broadcasters never wait for a slow client; the writer
+// coalesces everything pending into one write + flush.
+public class SocketConnection implements Connection {
+    private static final int MAX_BATCH = 256;
+
+    private final Socket socket;
+    private final OutputStream output;
+    private final OutboundQueue queue = new OutboundQueue();
+    private volatile boolean closed = false;
+
+    public SocketConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.output = socket.getOutputStream();
+        // Virtual thread: a parked writer costs next to nothing, whatever mode the reader runs in
+        Thread.ofVirtual().name("writer-" + socket.getPort()).start(this::writeLoop);
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public void disconnectOnOverflow() {
+        queue.disconnectOnOverflow();
+    }
+
+    public OutboundQueue getQueue() {
+        return queue;
+    }
+
+    @Override
+    public int getQueuedFrames() {
+        return queue.size();
+    }
+
+    @Override
+    public void sendFrame(ByteBuffer frame) {
+        if (closed) {
+            return;
+        }
+        if (!queue.offer(frame.duplicate())) {
+            ChatLog.error("Client " + getRemoteAddress() + ":" + getRemotePort() + " is too slow, disconnecting");
+            Metrics.slowConsumerDisconnect();
+            abort();
+        }
+    }
+
+    @Override
+    public void sendFrames(List<ByteBuffer> frames) {
+        if (closed) {
+            return;
+        }
+        List<ByteBuffer> views = new ArrayList<>(frames.size());
+        for (ByteBuffer frame : frames) {
+            views.add(frame.duplicate());
+        }
+        if (!queue.offerAll(views)) {
+            ChatLog.error("Client " + getRemoteAddress() + ":" + getRemotePort() + " is too slow, disconnecting");
+            Metrics.slowConsumerDisconnect();
+            abort();
+        }
+    }
+
+    @Override
+    public void sendShared(SharedFrame frame) {
+        if (closed) {
+            return;
+        }
+        if (!queue.offerShared(frame)) {
+            ChatLog.error("Client " + getRemoteAddress() + ":" + getRemotePort() + " is too slow, disconnecting");
+            Metrics.slowConsumerDisconnect();
+            abort();
+        }
+    }
+
+    @Override
+    public void sendAllShared(List<SharedFrame> frames) {
+        if (closed) {
+            return;
+        }
+        if (!queue.offerAllShared(frames)) {
+            ChatLog.error("Client " + getRemoteAddress() + ":" + getRemotePort() + " is too slow, disconnecting");
+            Metrics.slowConsumerDisconnect();
+            abort();
+        }
+    }
+
+    @Override
+    public void startBinary(ByteBuffer reply) {
+        queue.startBinary(reply.duplicate());
+    }
+
+    @Override
+    public boolean startCompression(ByteBuffer reply) {
+        queue.startCompression(reply.duplicate());
+        return true;
+    }
+
+    private void writeLoop() {
+        List<ByteBuffer> batch = new ArrayList<>(MAX_BATCH);
+        byte[] scratch = new byte[8192];
+        try {
+            while (queue.awaitAndDrain(batch, MAX_BATCH) > 0) {
+                int length = 0;
+                for (ByteBuffer frame : batch) {
+                    length += frame.remaining();
+                }
+                if (length > scratch.length) {
+                    scratch = Arrays.copyOf(scratch, Integer.highestOneBit(length) << 1);
+                }
+                int position = 0;
+                for (ByteBuffer frame : batch) {
+                    int remaining = frame.remaining();
+                    frame.get(scratch, position, remaining);
+                    position += remaining;
+                }
+                batch.clear();
+
+                output.write(scratch, 0, length);
+                output.flush();
+                Metrics.bytesWritten(length);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The reader thread notices the broken socket and cleans up
+        } finally {
+            closeSocket();
+        }
+    }
+
+    @Override
+    public int getRemotePort() {
+        return socket.getPort();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return String.valueOf(socket.getInetAddress());
+    }
+
+    // Graceful: the writer sends what is already queued, then closes the socket
+    @Override
+    public void close() {
+        closed = true;
+        queue.close();
+    }
+
+    // Immediate: used when the client is too slow to be worth draining, or dead
+    @Override
+    public void abort() {
+        close();
+        closeSocket();
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            ChatLog.error("I/O error while closing socket: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+}
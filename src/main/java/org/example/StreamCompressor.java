@@ -0,0 +1,131 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+// Compressed output for one connection, negotiated by the client with "/compress" (text
+// mode, answered with "OK DEFLATE" in plain text). Everything the server queues after that
+// answer is one raw Deflate stream (RFC 1951, no zlib header) that the client reads with an
+// Inflater(nowrap); client-to-server traffic stays uncompressed.
+//
+// The Deflater lives as long as the connection, so each line is compressed against the
+// 32 KB sent before it. OutboundQueue keeps frames plain; the connection's writer compresses
+// every batch it drains as one block ending in a SYNC_FLUSH, so the client can decode it
+// straight away, and the queue never drops a frame from a compressed stream. Only that one
+// writer compresses, so the stream order is the queue order; end() may come from any thread.
+//
+// Broadcasts to rooms of SHARED_MIN_RECIPIENTS or more are compressed once, from an empty
+// dictionary (SharedFrame.deflated), and that block is spliced into every recipient's stream
+// as is. It decodes because the block refers to nothing before it; so that our own output
+// does not refer back across the splice either, the next batch starts with a FULL_FLUSH,
+// which empties the Deflater's dictionary. A shared block compresses worse than the
+// connection's own output, in exchange for one Deflate per broadcast instead of one per member.
+//
+//   -Dchat.compress.enabled=false          refuse /compress
+//   -Dchat.compress.level=6                Deflater level 1..9
+//   -Dchat.compress.sharedMinRecipients=64 room size from which broadcasts are shared (0 = never)
+public final class StreamCompressor {
+    public static final String NEGOTIATE_COMMAND = "/compress";
+    public static final boolean ENABLED = !"false".equals(System.getProperty("chat.compress.enabled"));
+    static final int LEVEL = Integer.getInteger("chat.compress.level", 6);
+    static final int SHARED_MIN_RECIPIENTS = Integer.getInteger("chat.compress.sharedMinRecipients", 64);
+
+    // Shared blocks are compressed on the broadcasting thread, with one reusable Deflater per thread
+    private static final ThreadLocal<Deflater> SHARED_DEFLATER = ThreadLocal.withInitial(() -> new Deflater(LEVEL, true));
+
+    private final Deflater deflater = new Deflater(LEVEL, true);
+    private final ReentrantLock lock = new ReentrantLock();  // compress against end
+    private byte[] output = new byte[8192];
+    private boolean spliced = false;  // a shared block went out since our last batch, writer only
+    private boolean ended = false;    // guarded by lock
+
+    public StreamCompressor() {
+        Metrics.compressedConnection();
+    }
+
+    static boolean shares(SharedFrame frame) {
+        return SHARED_MIN_RECIPIENTS > 0 && frame.getRecipients() >= SHARED_MIN_RECIPIENTS;
+    }
+
+    // One frame on its own, from an empty dictionary, ending in a SYNC_FLUSH
+    static ByteBuffer deflateAlone(ByteBuffer frame) {
+        long start = System.nanoTime();
+        Deflater shared = SHARED_DEFLATER.get();
+        shared.reset();
+        shared.setInput(frame.duplicate());
+        byte[] out = new byte[frame.remaining() + 64];
+        int length = 0;
+        while (true) {
+            length += shared.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+            if (length < out.length) {
+                break;
+            }
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        Metrics.compressed(frame.remaining(), length, System.nanoTime() - start);
+        return ByteBuffer.wrap(out, 0, length).slice().asReadOnlyBuffer();
+    }
+
+    // The writer, after draining. One batch in, one SYNC_FLUSHed block out; null once ended.
+    ByteBuffer compress(List<ByteBuffer> frames) {
+        lock.lock();
+        try {
+            return ended ? null : compressLocked(frames);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ByteBuffer compressLocked(List<ByteBuffer> frames) {
+        long start = System.nanoTime();
+        int length = 0;
+        if (spliced) {
+            length = deflate(length, Deflater.FULL_FLUSH);
+            spliced = false;
+        }
+        long plain = 0;
+        for (ByteBuffer frame : frames) {
+            plain += frame.remaining();
+            deflater.setInput(frame.duplicate());
+            while (!deflater.needsInput()) {
+                length = deflate(length, Deflater.NO_FLUSH);
+            }
+        }
+        length = deflate(length, Deflater.SYNC_FLUSH);
+        Metrics.compressed(plain, length, System.nanoTime() - start);
+        return ByteBuffer.wrap(Arrays.copyOf(output, length));
+    }
+
+    // The writer is about to write a block from deflateAlone
+    void spliced() {
+        spliced = true;
+        Metrics.sharedCompressedFrame();
+    }
+
+    // Fill output from position `length`, growing it until the Deflater has nothing more to give
+    private int deflate(int length, int flush) {
+        while (true) {
+            length += deflater.deflate(output, length, output.length - length, flush);
+            if (length < output.length) {
+                return length;
+            }
+            output = Arrays.copyOf(output, output.length * 2);
+        }
+    }
+
+    // Frees the native zlib state when the queue closes
+    void end() {
+        lock.lock();
+        try {
+            if (!ended) {
+                ended = true;
+                deflater.end();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.example;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+// TLS setup for the chat port (Server --tls, Client --tls). Both transports use it: the
+// blocking one through SSLServerSocket, NIO through TlsEngine.
+//
+// A self-signed keystore for testing:
+//
+//   keytool -genkeypair -alias chat -keyalg EC -groupname secp256r1 -validity 365 \
+//           -dname CN=localhost -ext SAN=dns:localhost,ip:127.0.0.1 \
+//           -storetype PKCS12 -keystore chat.p12 -storepass changeit
+//   keytool -exportcert -alias chat -keystore chat.p12 -storepass changeit -file chat.crt
+//   keytool -importcert -noprompt -alias chat -file chat.crt \
+//           -storetype PKCS12 -keystore trust.p12 -storepass changeit
+//
+//   java org.example.Server --tls chat.p12
+//   java org.example.Client --tls --truststore trust.p12
+//
+// Reconnects are cheap because of session resumption: the server keeps sessions in its
+// cache and, for TLS 1.3, also hands out stateless session tickets (the JDK default,
+// jdk.tls.server.enableSessionTicketExtension). A client that reuses its SSLContext
+// resumes instead of doing a full handshake with certificate checks and key exchange.
+//
+//   -Dchat.tls.password=changeit              keystore / truststore password
+//   -Dchat.tls.sessionCacheSize=20480         server session cache entries
+//   -Dchat.tls.sessionTimeoutSeconds=86400    how long a session can be resumed
+//   -Dchat.tls.taskThreads=<cores>            threads for NIO handshake work (TlsEngine)
+public final class Tls {
+    static final char[] PASSWORD = System.getProperty("chat.tls.password", "changeit").toCharArray();
+    static final int SESSION_CACHE_SIZE = Integer.getInteger("chat.tls.sessionCacheSize", 20480);
+    static final int SESSION_TIMEOUT_SECONDS = Integer.getInteger("chat.tls.sessionTimeoutSeconds", 86400);
+    static final int TASK_THREADS = Integer.getInteger("chat.tls.taskThreads", Runtime.getRuntime().availableProcessors());
+
+    private Tls() {
+    }
+
+    public static SSLContext serverContext(Path keystore) throws IOException {
+        try {
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(load(keystore), PASSWORD);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot set up TLS with " + keystore + ": " + e.getMessage(), e);
+        }
+    }
+
+    // truststore == null: the JDK's default trust (cacerts, or -Djavax.net.ssl.trustStore)
+    public static SSLContext clientContext(Path truststore) throws IOException {
+        try {
+            if (truststore == null) {
+                return SSLContext.getDefault();
+            }
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(load(truststore));
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trust.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot set up TLS with " + truststore + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static KeyStore load(Path path) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(path)) {
+            store.load(in, PASSWORD);
+        }
+        return store;
+    }
+
+    // A resumed session keeps the creation time of the handshake that first made it
+    static void handshakeCompleted(SSLSession session, long startedMillis) {
+        Metrics.tlsHandshake(session.getCreationTime() < startedMillis);
+    }
+}
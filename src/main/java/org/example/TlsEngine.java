@@ -0,0 +1,215 @@
+package org.example;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// SSLEngine glue for one NioConnection; loop thread only.
+//
+// Reads: whatever the channel has goes into netIn and is unwrapped into appIn, which the
+// connection hands to its ClientHandler. Writes: the connection passes its whole gathered
+// batch of frames to one wrap() call, so a batch of small lines becomes as few TLS records
+// as possible instead of one record per line. Records that the socket did not take wait in
+// netOut for OP_WRITE.
+//
+// Handshake messages go through the same two paths. Delegated tasks (key exchange,
+// certificate signing) take milliseconds, so they run on a shared pool instead of the loop,
+// which meanwhile serves its other connections. Until `resume` runs on the loop the
+// connection does not read or write; then it calls tasksDone() and goes on. A resumed
+// session skips most of that work.
+final class TlsEngine {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static final ExecutorService tasks = Executors.newFixedThreadPool(Tls.TASK_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "tls-tasks");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final SSLEngine engine;
+    private final Runnable resume;  // called from the pool when the delegated tasks are done
+    private final long startedMillis = System.currentTimeMillis();
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private ByteBuffer netOut;
+    private boolean handshaking = true;
+    private boolean runningTasks = false;
+
+    TlsEngine(SSLContext context, Runnable resume) throws SSLException {
+        this.resume = resume;
+        engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        int packetSize = engine.getSession().getPacketBufferSize();
+        netIn = ByteBuffer.allocate(packetSize);
+        appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        netOut = ByteBuffer.allocate(packetSize);
+        engine.beginHandshake();
+    }
+
+    // Read and decrypt what the channel has. Returns the plaintext (valid until the next call,
+    // possibly empty while handshaking), or null when the peer closed the connection.
+    ByteBuffer read(SocketChannel channel) throws IOException {
+        if (runningTasks) {
+            appIn.clear().flip();
+            return appIn;  // the channel keeps the bytes until tasksDone
+        }
+        return unwrap(channel.read(netIn) == -1);
+    }
+
+    // The delegated tasks are done: go on with what arrived before they started. Returns
+    // like read(); the caller then flushes, as the handshake usually has a reply.
+    ByteBuffer tasksDone() throws IOException {
+        runningTasks = false;
+        return unwrap(false);
+    }
+
+    boolean isRunningTasks() {
+        return runningTasks;
+    }
+
+    private ByteBuffer unwrap(boolean closed) throws IOException {
+        netIn.flip();
+        appIn.clear();
+        try {
+            unwrap:
+            while (netIn.hasRemaining() && !runningTasks) {
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                runTasks(result);
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW -> {
+                        if (netIn.limit() == netIn.capacity()) {
+                            netIn.compact();
+                            netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                            netIn.flip();
+                        }
+                        break unwrap;  // rest of the record is still on its way
+                    }
+                    case BUFFER_OVERFLOW -> appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                    case CLOSED -> {
+                        closed = true;
+                        break unwrap;
+                    }
+                    case OK -> {
+                        if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                            break unwrap;
+                        }
+                    }
+                }
+            }
+        } catch (SSLException e) {
+            Metrics.tlsFailure();
+            throw e;
+        } finally {
+            netIn.compact();
+        }
+        if ((closed || engine.isInboundDone()) && appIn.position() == 0) {
+            return null;
+        }
+        appIn.flip();
+        return appIn;
+    }
+
+    // Encrypt as much of srcs[0..length) as netOut takes and write it out. Returns the
+    // plaintext bytes consumed; handshake messages take priority over application data.
+    long write(SocketChannel channel, ByteBuffer[] srcs, int length) throws IOException {
+        long consumed = 0;
+        while (true) {
+            if (netOut.position() > 0) {
+                netOut.flip();
+                channel.write(netOut);
+                netOut.compact();
+                if (netOut.position() > 0) {
+                    return consumed;  // socket buffer full
+                }
+            }
+            if (runningTasks) {
+                return consumed;  // tasksDone flushes again
+            }
+            HandshakeStatus status = engine.getHandshakeStatus();
+            SSLEngineResult result;
+            if (status == HandshakeStatus.NEED_WRAP) {
+                result = engine.wrap(EMPTY, netOut);
+            } else if (handshaking || !hasRemaining(srcs, length)) {
+                return consumed;  // waiting for the peer, or nothing left to send
+            } else {
+                result = engine.wrap(srcs, 0, length, netOut);
+                consumed += result.bytesConsumed();
+            }
+            runTasks(result);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+            } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new IOException("TLS session closed");
+            }
+        }
+    }
+
+    // Encrypted bytes or handshake messages still waiting to go out
+    boolean hasPendingOutput() {
+        return netOut.position() > 0 || engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP;
+    }
+
+    // Records the socket did not take yet: wait for OP_WRITE
+    boolean hasUnsentRecords() {
+        return netOut.position() > 0;
+    }
+
+    // Best effort close_notify; the channel is closed right after, whatever happens
+    void close(SocketChannel channel) {
+        engine.closeOutbound();
+        try {
+            netOut.clear();
+            engine.wrap(EMPTY, netOut);
+            netOut.flip();
+            channel.write(netOut);
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    private void runTasks(SSLEngineResult result) {
+        if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+            runningTasks = true;
+            tasks.execute(() -> {
+                try {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                } finally {
+                    resume.run();  // a failed task shows up as an SSLException on the loop
+                }
+            });
+            return;
+        }
+        if (handshaking && (result.getHandshakeStatus() == HandshakeStatus.FINISHED
+                || engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING)) {
+            handshaking = false;
+            Tls.handshakeCompleted(engine.getSession(), startedMillis);
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] srcs, int length) {
+        for (int i = 0; i < length; i++) {
+            if (srcs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Make room for at least `size` more bytes, keeping what is in the buffer (write mode)
+    private static ByteBuffer grow(ByteBuffer buffer, int size) {
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.position() + Math.max(size, buffer.capacity()));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+}
@@ -0,0 +1,62 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Token bucket kept as a single "theoretical arrival time" (GCRA): each token moves it
+// forward by 1/rate seconds, and a request fits while it stays within `burst` tokens of now.
+// Lock-free and allocation-free, so it can sit on the per-message hot path and be shared
+// between threads.
+public final class TokenBucket {
+    private final long ratePerSecond;
+    private final long burstNanos;
+    private final AtomicLong arrival = new AtomicLong(Long.MIN_VALUE);
+
+    public TokenBucket(long ratePerSecond, long burst) {
+        this.ratePerSecond = ratePerSecond;
+        this.burstNanos = cost(Math.max(1, burst));
+    }
+
+    private long cost(long tokens) {
+        return tokens * 1_000_000_000L / ratePerSecond;
+    }
+
+    // Take the tokens if they are available right now
+    public boolean tryAcquire(long tokens) {
+        return tryReserve(tokens, 0) >= 0;
+    }
+
+    // Take the tokens if the caller would have to wait at most maxWaitNanos for them;
+    // returns the wait (0 = straight away), or -1 without taking anything
+    public long tryReserve(long tokens, long maxWaitNanos) {
+        long now = System.nanoTime();
+        long cost = cost(tokens);
+        while (true) {
+            long current = arrival.get();
+            long next = Math.max(current, now - burstNanos) + cost;
+            if (next - now > maxWaitNanos) {
+                return -1;
+            }
+            if (arrival.compareAndSet(current, next)) {
+                return Math.max(0, next - now);
+            }
+        }
+    }
+
+    // Take the tokens in any case; returns how many nanoseconds the caller should wait
+    // before going ahead (0 = straight away)
+    public long reserve(long tokens) {
+        long now = System.nanoTime();
+        long cost = cost(tokens);
+        while (true) {
+            long current = arrival.get();
+            long next = Math.max(current, now - burstNanos) + cost;
+            if (arrival.compareAndSet(current, next)) {
+                return Math.max(0, next - now);
+            }
+        }
+    }
+
+    public long getRatePerSecond() {
+        return ratePerSecond;
+    }
+}
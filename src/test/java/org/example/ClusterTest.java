@@ -0,0 +1,62 @@
+package org.example;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Two nodes of a cluster (ClusterNode) in one JVM, linked both ways over loopback,
+// and a third node with the wrong --cluster-secret that must not get in
+class ClusterTest {
+    private static Path secret;
+    private static int firstPort;
+    private static int secondPort;
+    private static int firstClusterPort;
+
+    @BeforeAll
+    static void startCluster() throws Exception {
+        Path directory = Files.createTempDirectory("chat-cluster");
+        secret = Files.writeString(directory.resolve("cluster.key"), "correct horse battery staple\n");
+        firstClusterPort = TestServers.freePort();
+        int secondClusterPort = TestServers.freePort();
+        firstPort = TestServers.start(TestServers.freePort(), "--cluster-port", String.valueOf(firstClusterPort),
+                "--peers", "127.0.0.1:" + secondClusterPort, "--cluster-secret", secret.toString(), "--node-id", "first");
+        secondPort = TestServers.start(TestServers.freePort(), "--cluster-port", String.valueOf(secondClusterPort),
+                "--peers", "127.0.0.1:" + firstClusterPort, "--cluster-secret", secret.toString(), "--node-id", "second");
+    }
+
+    @Test
+    void roomMessagesCrossNodes() throws Exception {
+        try (TestServers.ChatClient alice = TestServers.ChatClient.login(firstPort);
+             TestServers.ChatClient bob = TestServers.ChatClient.login(secondPort)) {
+            // Queued on the link until it is up, so nothing is lost while the nodes find each other
+            alice.send("hello from the first node");
+            bob.await(alice.name + ": hello from the first node");
+            bob.send("hello from the second node");
+            alice.await(bob.name + ": hello from the second node");
+        }
+    }
+
+    @Test
+    void refusesPeerWithWrongSecret() throws Exception {
+        Path wrong = Files.writeString(secret.resolveSibling("wrong.key"), "not the secret\n");
+        long failures = Metrics.getClusterAuthFailures();
+        int intruderPort = TestServers.start(TestServers.freePort(), "--cluster-port", String.valueOf(TestServers.freePort()),
+                "--peers", "127.0.0.1:" + firstClusterPort, "--cluster-secret", wrong.toString(), "--node-id", "intruder");
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Metrics.getClusterAuthFailures() <= failures && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(Metrics.getClusterAuthFailures() > failures, "handshake with the wrong secret was not refused");
+
+        try (TestServers.ChatClient alice = TestServers.ChatClient.login(firstPort);
+             TestServers.ChatClient mallory = TestServers.ChatClient.login(intruderPort)) {
+            mallory.send("hello from the intruder");
+            alice.awaitAbsent("hello from the intruder", 1000);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.example;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.fail;
+
+// The file port (FileTransferServer): a broken upload continues from what the spool has,
+// a broken download from what the client's .part file has
+class FileTransferTest {
+    private static final int SIZE = 300_000;
+    private static Path directory;
+    private static int port;
+    private static int filePort;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        directory = Files.createTempDirectory("chat-files");
+        filePort = TestServers.freePort();
+        port = TestServers.start(TestServers.freePort(), "--file-port", String.valueOf(filePort),
+                "--file-spool", directory.resolve("spool").toString());
+    }
+
+    @Test
+    void resumesBrokenUploadAndDownload() throws Exception {
+        byte[] content = new byte[SIZE];
+        new Random(17).nextBytes(content);
+        Path source = Files.write(directory.resolve("source.bin"), content);
+
+        try (TestServers.ChatClient alice = TestServers.ChatClient.login(port);
+             TestServers.ChatClient bob = TestServers.ChatClient.login(port)) {
+            alice.send("/upload data.bin " + SIZE);
+            String ticket = alice.await("FILE_UPLOAD ").split(" ")[1];
+
+            // First attempt breaks off after a third of the file
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", filePort))) {
+                writeLine(channel, "PUT " + ticket);
+                assertEquals("OFFSET 0", readLine(channel));
+                write(channel, ByteBuffer.wrap(content, 0, SIZE / 3));
+            }
+            assertEquals("OFFSET " + SIZE / 3, resumedOffset(ticket));
+            FileTransferClient.upload("127.0.0.1", filePort, ticket, source);
+
+            String shared = bob.await("get it with /download ");
+            String fileId = shared.substring(shared.lastIndexOf(' ') + 1);
+            bob.send("/download " + fileId);
+            String[] offer = bob.await("FILE_DOWNLOAD ").split(" ");
+            assertEquals("data.bin", offer[3]);
+            assertEquals(String.valueOf(SIZE), offer[4]);
+
+            // An earlier download got half of it into the .part file
+            Path target = directory.resolve("download.bin");
+            Files.write(FileTransferClient.partFile(target), Arrays.copyOf(content, SIZE / 2));
+            FileTransferClient.download("127.0.0.1", filePort, offer[1], target, SIZE);
+            assertArrayEquals(content, Files.readAllBytes(target));
+            assertFalse(Files.exists(FileTransferClient.partFile(target)));
+        }
+    }
+
+    // The server notices the broken connection on its own time: ask until it has let go of the file
+    private static String resumedOffset(String ticket) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", filePort))) {
+                writeLine(channel, "PUT " + ticket);
+                String reply = readLine(channel);
+                if (reply.startsWith("OFFSET ")) {
+                    return reply;  // closing here is one more broken attempt, resumed the same way
+                }
+            }
+            Thread.sleep(50);
+        }
+        return fail("upload could not be resumed");
+    }
+
+    private static void writeLine(SocketChannel channel, String line) throws IOException {
+        write(channel, ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static void write(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static String readLine(SocketChannel channel) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            one.clear();
+            if (channel.read(one) < 0) {
+                return line.toString();
+            }
+            char c = (char) one.get(0);
+            if (c == '\n') {
+                return line.toString();
+            }
+            line.append(c);
+        }
+    }
+}
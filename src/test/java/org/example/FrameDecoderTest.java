@@ -0,0 +1,100 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Inbound framing: text lines, the switch to BinaryCodec frames, and reads that split both
+class FrameDecoderTest {
+    private final List<String> lines = new ArrayList<>();
+    private final List<Message> messages = new ArrayList<>();
+    private final FrameDecoder decoder = new FrameDecoder(line -> {
+        lines.add(line);
+        if (line.equals(BinaryCodec.NEGOTIATE_COMMAND)) {
+            this.decoder.switchToBinary();  // as ClientHandler does, before the rest of the read
+        }
+    }, messages::add);
+
+    @Test
+    void splitsLinesAcrossReads() {
+        byte[] bytes = "hello\r\nsmørrebrød 🚀\nlast".getBytes(StandardCharsets.UTF_8);
+        // One byte per read, so a multi-byte character is cut in the middle too
+        for (byte b : bytes) {
+            decoder.decode(ByteBuffer.wrap(new byte[]{b}));
+        }
+        assertEquals(List.of("hello", "smørrebrød 🚀"), lines);
+        decoder.decode(ByteBuffer.wrap("\n".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("last", lines.get(2));
+    }
+
+    @Test
+    void rejectsOverlongLine() {
+        LineDecoder small = new LineDecoder(8);
+        assertThrows(IllegalStateException.class,
+                () -> small.decode(ByteBuffer.wrap("123456789\n".getBytes(StandardCharsets.UTF_8)), line -> { }));
+    }
+
+    @Test
+    void switchesToBinaryWithinOneRead() {
+        ByteBuffer frame = BinaryCodec.encode(MessageType.TEXT, 42, 1_700_000_000_000L, "a|b\nc");
+        ByteBuffer read = ByteBuffer.allocate(64);
+        read.put("/binary\n".getBytes(StandardCharsets.UTF_8)).put(frame.duplicate()).flip();
+        decoder.decode(read);
+
+        assertEquals(List.of("/binary"), lines);
+        assertEquals(1, messages.size());
+        Message message = messages.get(0);
+        assertEquals(MessageType.TEXT, message.getMessageType());
+        assertEquals(42, message.getClientNumber());
+        assertEquals(1_700_000_000_000L, message.getTimestampMillis());
+        assertEquals("a|b\nc", message.getPayload());
+    }
+
+    @Test
+    void decodesFramesSplitAcrossReads() {
+        decoder.switchToBinary();
+        ByteBuffer stream = ByteBuffer.allocate(4096);
+        for (int i = 0; i < 10; i++) {
+            // The last one is bigger than the decoder's first buffers, so they have to grow
+            stream.put(BinaryCodec.encode(MessageType.EMOJI, i, i, "x".repeat(i == 9 ? 1000 : i)));
+        }
+        stream.flip();
+        // Uneven reads, some direct (no backing array), so both decode paths run
+        int[] sizes = {1, 3, 7, 40, 2, 500};
+        for (int i = 0; stream.hasRemaining(); i++) {
+            int size = Math.min(sizes[i % sizes.length], stream.remaining());
+            ByteBuffer read = i % 2 == 0 ? ByteBuffer.allocate(size) : ByteBuffer.allocateDirect(size);
+            read.put(stream.slice(stream.position(), size)).flip();
+            stream.position(stream.position() + size);
+            decoder.decode(read);
+        }
+
+        assertEquals(10, messages.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(MessageType.EMOJI, messages.get(i).getMessageType());
+            assertEquals(i, messages.get(i).getClientNumber());
+            assertEquals("x".repeat(i == 9 ? 1000 : i), messages.get(i).getPayload());
+        }
+    }
+
+    @Test
+    void rejectsMalformedFrames() {
+        decoder.switchToBinary();
+        ByteBuffer tooLong = ByteBuffer.allocate(4).putInt(BinaryCodec.MAX_FRAME_LENGTH + 1).flip();
+        assertThrows(IllegalStateException.class, () -> decoder.decode(tooLong));
+
+        FrameDecoder other = new FrameDecoder(line -> { }, message -> { });
+        other.switchToBinary();
+        ByteBuffer badType = ByteBuffer.allocate(4 + BinaryCodec.HEADER_LENGTH)
+                .putInt(BinaryCodec.HEADER_LENGTH).put((byte) 99).putLong(0).putLong(0).flip();
+        assertThrows(IllegalStateException.class, () -> other.decode(badType));
+        assertTrue(messages.isEmpty());
+    }
+}
@@ -0,0 +1,83 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Overflow policies and the compressed stream the writer produces from the queue
+class OutboundQueueTest {
+
+    @Test
+    void dropsOldestUntilASessionNeedsEveryFrame() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        assertTrue(queue.offer(Frames.encodeLine("1")));
+        assertTrue(queue.offer(Frames.encodeLine("2")));
+        assertTrue(queue.offer(Frames.encodeLine("3")));
+        assertEquals(1, queue.getDroppedFrames());
+        assertEquals("2\n3\n", drain(queue));
+
+        queue.disconnectOnOverflow();
+        assertTrue(queue.offer(Frames.encodeLine("4")));
+        assertTrue(queue.offer(Frames.encodeLine("5")));
+        assertFalse(queue.offer(Frames.encodeLine("6")), "a full queue must disconnect once a session is attached");
+        assertEquals(1, queue.getDroppedFrames());
+    }
+
+    @Test
+    void compressedBatchesFormOneStream() throws Exception {
+        OutboundQueue queue = new OutboundQueue();
+        queue.offer(Frames.encodeLine("plain"));
+        queue.startCompression(Frames.encodeLine("OK DEFLATE"));
+        assertEquals("plain\nOK DEFLATE\n", drain(queue));
+
+        Inflater inflater = new Inflater(true);
+        StringBuilder received = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int batch = 0; batch < 3; batch++) {
+            for (int i = 0; i < 20; i++) {
+                String line = "batch " + batch + " line " + i + " the same words again and again";
+                expected.append(line).append('\n');
+                queue.offer(Frames.encodeLine(line));
+            }
+            // Every block ends in a SYNC_FLUSH, so each one decodes on its own arrival
+            List<ByteBuffer> blocks = new ArrayList<>();
+            queue.drainTo(blocks, 1024);
+            assertEquals(1, blocks.size(), "one drained batch is one compressed block");
+            received.append(inflate(inflater, blocks.get(0)));
+        }
+        assertEquals(expected.toString(), received.toString());
+        queue.close();
+    }
+
+    private static String drain(OutboundQueue queue) {
+        List<ByteBuffer> batch = new ArrayList<>();
+        queue.drainTo(batch, 1024);
+        StringBuilder text = new StringBuilder();
+        for (ByteBuffer frame : batch) {
+            text.append(StandardCharsets.UTF_8.decode(frame.duplicate()));
+        }
+        return text.toString();
+    }
+
+    private static String inflate(Inflater inflater, ByteBuffer block) throws Exception {
+        byte[] input = new byte[block.remaining()];
+        block.duplicate().get(input);
+        inflater.setInput(input);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int length;
+        while ((length = inflater.inflate(buffer)) > 0) {
+            out.write(buffer, 0, length);
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,63 @@
+package org.example;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Resumable sessions (SessionManager): a client that counts what it received since
+// "SESSION <id>" gets exactly the frames it missed after its socket dropped
+class SessionTest {
+    private static int port;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        port = TestServers.start(TestServers.freePort(), "--nio", "--loops", "1");
+    }
+
+    @Test
+    void replaysWhatTheDroppedConnectionMissed() throws Exception {
+        TestServers.ChatClient alice = TestServers.ChatClient.connect(port);
+        alice.send(alice.name);
+        String session = alice.await("SESSION ").substring("SESSION ".length());
+        // Count like a real client: every line after the SESSION line
+        long received = alice.readUntilQuiet(300).size();
+
+        try (TestServers.ChatClient bob = TestServers.ChatClient.login(port)) {
+            bob.send("before the drop");
+            List<String> seen = alice.readUntilQuiet(300);
+            assertTrue(seen.contains(bob.name + ": before the drop"), "alice did not get " + seen);
+            received += seen.size();
+
+            // Dropped without /quit: the user stays in the room for the grace period
+            alice.socket.close();
+            for (int i = 1; i <= 3; i++) {
+                bob.send("missed " + i);
+            }
+            bob.awaitAbsent(alice.name + " left the room", 300);
+
+            TestServers.ChatClient resumed = TestServers.ChatClient.connect(port);
+            try (resumed) {
+                resumed.send("RESUME " + session + " " + received);
+                assertEquals("RESUMED " + received, resumed.await("RESUMED "));
+                for (int i = 1; i <= 3; i++) {
+                    assertEquals(bob.name + ": missed " + i, resumed.in.readLine());
+                }
+                // And the live stream goes on on the new connection
+                bob.send("after the resume");
+                resumed.await(bob.name + ": after the resume");
+            }
+        }
+    }
+
+    @Test
+    void refusesUnknownSession() throws Exception {
+        try (TestServers.ChatClient client = TestServers.ChatClient.connect(port)) {
+            client.send("RESUME 0123456789abcdef 5");
+            client.await("Unknown or expired session");
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.fail;
+
+// Real servers for the tests: Server.main on a daemon thread, and a plain text client for it
+final class TestServers {
+    private static final AtomicInteger names = new AtomicInteger();
+
+    private TestServers() {
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    // Server.main with --port `port` and `extra`; returns once it accepts connections
+    static int start(int port, String... extra) throws Exception {
+        List<String> args = new ArrayList<>(List.of("--port", String.valueOf(port), "--room-capacity", "50"));
+        args.addAll(List.of(extra));
+        Thread thread = new Thread(() -> Server.main(args.toArray(new String[0])), "test-server-" + port);
+        thread.setDaemon(true);
+        thread.start();
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < deadline) {
+            try (Socket ignored = new Socket("127.0.0.1", port)) {
+                return port;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        return fail("server on port " + port + " did not start");
+    }
+
+    static final class ChatClient implements AutoCloseable {
+        final String name = "user" + names.incrementAndGet();
+        final Socket socket;
+        final BufferedReader in;
+        final Writer out;
+
+        private ChatClient(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(5000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+        }
+
+        // Connected, but not logged in yet
+        static ChatClient connect(int port) throws IOException {
+            ChatClient client = new ChatClient(port);
+            client.await("Welcome!");
+            return client;
+        }
+
+        static ChatClient login(int port) throws IOException {
+            ChatClient client = connect(port);
+            client.send(client.name);
+            client.await("Hello " + client.name + "!");
+            return client;
+        }
+
+        void send(String line) throws IOException {
+            out.write(line + "\n");
+            out.flush();
+        }
+
+        // Read until a line containing `text` and return it; the socket timeout fails the test
+        String await(String text) throws IOException {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.contains(text)) {
+                    return line;
+                }
+            }
+            return fail("connection closed before '" + text + "'");
+        }
+
+        // Everything that arrives until the connection has been quiet for `millis`
+        List<String> readUntilQuiet(int millis) throws IOException {
+            List<String> lines = new ArrayList<>();
+            socket.setSoTimeout(millis);
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    lines.add(line);
+                }
+            } catch (SocketTimeoutException e) {
+                // quiet
+            } finally {
+                socket.setSoTimeout(5000);
+            }
+            return lines;
+        }
+
+        // Fail if a line containing `text` arrives within `millis`
+        void awaitAbsent(String text, int millis) throws IOException {
+            socket.setSoTimeout(millis);
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.contains(text)) {
+                        fail("unexpected '" + line + "'");
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // nothing came
+            } finally {
+                socket.setSoTimeout(5000);
+            }
+        }
+
+        // /quit, so the user leaves at once instead of waiting for a session resume
+        @Override
+        public void close() throws IOException {
+            try {
+                send("/quit");
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}
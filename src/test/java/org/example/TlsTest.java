@@ -0,0 +1,179 @@
+package org.example;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+// TLS on the chat port against a real server of each kind: the blocking one (SSLServerSocket)
+// and the NIO one (TlsEngine), both with a self-signed keystore made by keytool as in Tls
+class TlsTest {
+    private static final AtomicInteger names = new AtomicInteger();
+    private static Path keystore;
+    private static Path truststore;
+    private static int blockingPort;
+    private static int nioPort;
+
+    @BeforeAll
+    static void startServers() throws Exception {
+        Path directory = Files.createTempDirectory("chat-tls");
+        keystore = directory.resolve("chat.p12");
+        truststore = directory.resolve("trust.p12");
+        Path certificate = directory.resolve("chat.crt");
+        keytool("-genkeypair", "-alias", "chat", "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "1",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-storetype", "PKCS12", "-keystore", keystore.toString(), "-storepass", "changeit");
+        keytool("-exportcert", "-alias", "chat", "-keystore", keystore.toString(), "-storepass", "changeit",
+                "-file", certificate.toString());
+        keytool("-importcert", "-noprompt", "-alias", "chat", "-file", certificate.toString(),
+                "-storetype", "PKCS12", "-keystore", truststore.toString(), "-storepass", "changeit");
+
+        blockingPort = start();
+        nioPort = start("--nio", "--loops", "1");
+    }
+
+    @ParameterizedTest(name = "nio={0}")
+    @ValueSource(booleans = {false, true})
+    void deliversOverTls(boolean nio) throws Exception {
+        SSLContext context = Tls.clientContext(truststore);
+        try (ChatClient alice = ChatClient.login(context, port(nio));
+             ChatClient bob = ChatClient.login(context, port(nio))) {
+            assertEquals("TLSv1.3", alice.socket.getSession().getProtocol());
+            alice.send("hello over tls");
+            bob.await(alice.name + ": hello over tls");
+
+            // Many lines at once: the NIO side wraps a whole batch into few records
+            for (int i = 0; i < 50; i++) {
+                bob.send("line " + i);
+            }
+            alice.await(bob.name + ": line 49");
+        }
+    }
+
+    @ParameterizedTest(name = "nio={0}")
+    @ValueSource(booleans = {false, true})
+    void resumesTlsSession(boolean nio) throws Exception {
+        // Sessions (TLS 1.3 tickets) are cached in the client's SSLContext
+        SSLContext context = Tls.clientContext(truststore);
+        try (ChatClient first = ChatClient.login(context, port(nio))) {
+            assertEquals("TLSv1.3", first.socket.getSession().getProtocol());
+        }
+        long resumed = Metrics.getTlsResumed();
+        try (ChatClient second = ChatClient.login(context, port(nio))) {
+            assertEquals("TLSv1.3", second.socket.getSession().getProtocol());
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Metrics.getTlsResumed() <= resumed && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(Metrics.getTlsResumed() > resumed, "second handshake was not a resumption");
+    }
+
+    private static int port(boolean nio) {
+        return nio ? nioPort : blockingPort;
+    }
+
+    private static void keytool(String... arguments) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "keytool").toString());
+        command.addAll(List.of(arguments));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertEquals(0, process.waitFor(), "keytool failed: " + output);
+    }
+
+    // Server.main on a daemon thread; returns the port once it accepts connections
+    private static int start(String... extra) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        List<String> args = new ArrayList<>(List.of("--port", String.valueOf(port), "--room-capacity", "50",
+                "--tls", keystore.toString()));
+        args.addAll(List.of(extra));
+        Thread thread = new Thread(() -> Server.main(args.toArray(new String[0])), "test-server-" + port);
+        thread.setDaemon(true);
+        thread.start();
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < deadline) {
+            try (Socket ignored = new Socket("127.0.0.1", port)) {
+                return port;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        return fail("server on port " + port + " did not start");
+    }
+
+    private static final class ChatClient implements AutoCloseable {
+        final String name = "tls" + names.incrementAndGet();
+        final SSLSocket socket;
+        final BufferedReader in;
+        final Writer out;
+
+        private ChatClient(SSLContext context, int port) throws IOException {
+            socket = (SSLSocket) context.getSocketFactory().createSocket("127.0.0.1", port);
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            socket.setSSLParameters(parameters);
+            socket.setSoTimeout(5000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+        }
+
+        static ChatClient login(SSLContext context, int port) throws IOException {
+            ChatClient client = new ChatClient(context, port);
+            client.await("Welcome!");
+            client.send(client.name);
+            client.await("Hello " + client.name + "!");
+            return client;
+        }
+
+        void send(String line) throws IOException {
+            out.write(line + "\n");
+            out.flush();
+        }
+
+        // Read until a line containing `text`; the socket timeout fails the test
+        void await(String text) throws IOException {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.contains(text)) {
+                    return;
+                }
+            }
+            fail("connection closed before '" + text + "'");
+        }
+
+        // /quit, so the user leaves at once instead of waiting for a session resume
+        @Override
+        public void close() throws IOException {
+            try {
+                send("/quit");
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}